@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers per job the key of the last build status sent for a commit and how the build that sent
+ * it ended, so that a build can take over the status of the aborted build before it without resolving
+ * the revisions of that build. Kept next to the builds of the job in a small file of its own.
+ */
+final class BitbucketBuildKeyIndex {
+  private static final Logger logger = Logger.getLogger(BitbucketBuildKeyIndex.class.getName());
+
+  static final String FILE_NAME = "bitbucket-build-status-keys.xml";
+  static final int MAX_COMMITS = 100;
+
+  // guarded by itself, loaded indexes of the jobs that are still around
+  private static final Map<Job<?, ?>, BitbucketBuildKeyIndex> indexes = new WeakHashMap<Job<?, ?>, BitbucketBuildKeyIndex>();
+
+  private static final class Entry {
+    private String key;
+    private int buildNumber;
+    private Result result;
+  }
+
+  // guarded by this, from the least to the most recently notified commit
+  private final LinkedHashMap<String, Entry> commits = new LinkedHashMap<String, Entry>();
+  private transient XmlFile file;
+
+  private BitbucketBuildKeyIndex() {
+  }
+
+  static BitbucketBuildKeyIndex of(Job<?, ?> job) {
+    return get(job, true);
+  }
+
+  private static BitbucketBuildKeyIndex get(Job<?, ?> job, boolean create) {
+    synchronized (indexes) {
+      BitbucketBuildKeyIndex index = indexes.get(job);
+      if (index == null) {
+        XmlFile file = new XmlFile(new File(job.getRootDir(), FILE_NAME));
+        if (!create && !file.exists()) {
+          return null;
+        }
+        index = load(file);
+        indexes.put(job, index);
+      }
+      return index;
+    }
+  }
+
+  private static BitbucketBuildKeyIndex load(XmlFile file) {
+    BitbucketBuildKeyIndex index = null;
+    if (file.exists()) {
+      try {
+        index = (BitbucketBuildKeyIndex) file.read();
+      }
+      catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to read " + file + ", starting over", e);
+      }
+    }
+    if (index == null) {
+      index = new BitbucketBuildKeyIndex();
+    }
+    index.file = file;
+    return index;
+  }
+
+  /**
+   * Looks at the numbers recorded with the keys only, so the previous build is not loaded.
+   *
+   * @return the key the build right before the given one sent for the commit if that build was aborted,
+   * otherwise null
+   */
+  synchronized String abortedKey(String commitId, int buildNumber) {
+    Entry entry = commits.get(commitId);
+    if (entry != null && entry.buildNumber == buildNumber - 1 && entry.result == Result.ABORTED) {
+      return entry.key;
+    }
+    return null;
+  }
+
+  /**
+   * Records a status Bitbucket accepted.
+   *
+   * @param result the result of the build if it has already completed, otherwise null
+   */
+  synchronized void sent(String commitId, String key, int buildNumber, Result result) {
+    Entry entry = commits.remove(commitId);
+    if (entry != null && key.equals(entry.key) && entry.buildNumber == buildNumber) {
+      commits.put(commitId, entry);
+      if (result != null && entry.result != result) {
+        entry.result = result;
+        save();
+      }
+      return;
+    }
+    entry = new Entry();
+    entry.key = key;
+    entry.buildNumber = buildNumber;
+    entry.result = result;
+    commits.put(commitId, entry);
+    if (commits.size() > MAX_COMMITS) {
+      Iterator<String> eldest = commits.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+    save();
+  }
+
+  synchronized void completed(int buildNumber, Result result) {
+    boolean changed = false;
+    for (Entry entry : commits.values()) {
+      if (entry.buildNumber == buildNumber && entry.result != result) {
+        entry.result = result;
+        changed = true;
+      }
+    }
+    if (changed) {
+      save();
+    }
+  }
+
+  private void save() {
+    try {
+      file.write(this);
+    }
+    catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to save " + file, e);
+    }
+  }
+
+  @Extension
+  public static class Listener extends RunListener<Run<?, ?>> {
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+      BitbucketBuildKeyIndex index = get(run.getParent(), false);
+      if (index != null) {
+        index.completed(run.getNumber(), run.getResult());
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Build statuses a build queued without waiting for them that could not be sent to Bitbucket,
+ * listed on the page of the build.
+ */
+public class BitbucketBuildStatusFailuresAction extends InvisibleAction {
+  private static final Logger logger = Logger.getLogger(BitbucketBuildStatusFailuresAction.class.getName());
+
+  // guards adding the action to a build, without locking the build itself
+  private static final Object LOCK = new Object();
+
+  private final List<String> failures = new ArrayList<String>();
+
+  public synchronized List<String> getFailures() {
+    return new ArrayList<String>(failures);
+  }
+
+  private synchronized void add(String failure) {
+    failures.add(failure);
+  }
+
+  static void record(Run<?, ?> build, BitbucketBuildStatusResource resource, BitbucketBuildStatus status,
+                     String reason) {
+    BitbucketBuildStatusFailuresAction action;
+    synchronized (LOCK) {
+      action = build.getAction(BitbucketBuildStatusFailuresAction.class);
+      if (action == null) {
+        action = new BitbucketBuildStatusFailuresAction();
+        build.addAction(action);
+      }
+    }
+    action.add("Build status " + status.getState() + " with key " + status.getKey() + " for commit " +
+               resource.getCommitId() + (resource.getRepoSlug() == null ? "" : " of " +
+               (resource.getOwner() == null ? "" : resource.getOwner() + "/") + resource.getRepoSlug()) + ": " +
+               reason);
+    try {
+      build.save();
+    }
+    catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to save the Bitbucket build status failures of " + build, e);
+    }
+  }
+}
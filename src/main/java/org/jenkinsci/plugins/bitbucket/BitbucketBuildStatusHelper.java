@@ -24,25 +24,29 @@
 
 package org.jenkinsci.plugins.bitbucket;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import hudson.EnvVars;
 import hudson.model.*;
 import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.util.BuildData;
 import hudson.scm.SCM;
 import hudson.tasks.test.AbstractTestResultAction;
 import hudson.util.LogTaskListener;
 import jenkins.branch.Branch;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMRevisionAction;
+import jenkins.scm.api.SCMSource;
 import okhttp3.*;
 import okio.Buffer;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketAuthorization;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketClientRegistry;
 import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
 import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
-import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusSerializer;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusEncoder;
 import org.jenkinsci.plugins.bitbucket.scm.GitScmAdapter;
 import org.jenkinsci.plugins.bitbucket.scm.ScmAdapter;
 import org.jenkinsci.plugins.bitbucket.validator.BitbucketHostValidator;
@@ -54,18 +58,53 @@ import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty;
 import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class BitbucketBuildStatusHelper {
   private static final Logger logger = Logger.getLogger(BitbucketBuildStatusHelper.class.getName());
-  private static final BitbucketHostValidator hostValidator = new BitbucketHostValidator();
+  private static final BoundedCache<String, RepoCoordinates> repoCoordinatesCache =
+    new BoundedCache<String, RepoCoordinates>(1000, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+  /** Owner and slug parsed from the path of a repository URL. */
+  private static final class RepoCoordinates {
+    static final RepoCoordinates NONE = new RepoCoordinates(null, null);
+
+    final String owner;
+    final String repoSlug;
+
+    RepoCoordinates(String owner, String repoSlug) {
+      this.owner = owner;
+      this.repoSlug = repoSlug;
+    }
+  }
+
+  /** Computes the environment of a build the first time a repository URL needs to be expanded. */
+  private static final class Environment {
+    private final Run<?, ?> build;
+    private EnvVars vars;
+
+    Environment(Run<?, ?> build) {
+      this.build = build;
+    }
+
+    String expand(String value) throws Exception {
+      if (value.indexOf('$') < 0) {
+        return value;
+      }
+      if (vars == null) {
+        vars = build.getEnvironment(new LogTaskListener(logger, Level.INFO));
+      }
+      return vars.expand(value);
+    }
+  }
 
   private static List<BitbucketBuildStatusResource> createBuildStatusResources(
     final SCM scm,
     final Run<?, ?> build,
-    final String bitbucketHost,
+    final Environment environment,
     TaskListener listener) throws Exception {
     List<BitbucketBuildStatusResource> buildStatusResources = new ArrayList<BitbucketBuildStatusResource>();
 
@@ -81,44 +120,28 @@ class BitbucketBuildStatusHelper {
       throw new Exception("Bitbucket build notifier requires a git repo or a mercurial repo as SCM");
     }
 
-    Map<String, URIish> commitRepoMap = scmAdapter.getCommitRepoMap();
-    for (Map.Entry<String, URIish> commitRepoPair : commitRepoMap.entrySet()) {
+    BitbucketHostValidator hostValidator = BitbucketNotifierConfiguration.get().getHostValidator();
+    Map<URIish, String> repoCommitMap = scmAdapter.getRepoCommitMap();
+    for (Map.Entry<URIish, String> repoCommitPair : repoCommitMap.entrySet()) {
 
-      // if repo is not hosted in bitbucket.org then log it and remove repo from being notified
-      URIish repoUri = commitRepoPair.getValue();
-      if (!hostValidator.isValid(repoUri.getHost(), bitbucketHost)) {
-        listener.getLogger().println(hostValidator.renderError(bitbucketHost));
+      // if repo is not hosted in a configured bitbucket instance then log it and remove repo from being notified
+      URIish repoUri = repoCommitPair.getKey();
+      String bitbucketHost = hostValidator.route(repoUri.getHost(), repoUri.getPort());
+      if (bitbucketHost == null) {
+        listener.getLogger().println(hostValidator.renderError(repoUri.getHost()));
         continue;
       }
 
       // expand parameters on repo url
-      String repoUrl = build.getEnvironment(new LogTaskListener(logger, Level.INFO)).expand(repoUri.getPath());
-      if (repoUrl.endsWith("/")) {
-        //fix JENKINS-49902
-        repoUrl = repoUrl.substring(0, repoUrl.length() - 1);
-      }
-
-      // extract bitbucket user name and repository name from repo URI
-      String repoName = repoUrl.substring(
-        repoUrl.lastIndexOf("/") + 1,
-        repoUrl.contains(".git") ? repoUrl.indexOf(".git") : repoUrl.length()
-      );
-
-      if (repoName.isEmpty()) {
-        logger.log(Level.INFO, "Bitbucket build notifier could not extract the repository name from the repository URL: " + repoUrl);
+      String repoUrl = environment.expand(repoUri.getPath());
+      RepoCoordinates coordinates = repoCoordinatesCache.get(repoUri.getHost() + repoUrl, key -> parseRepoUrl(repoUrl));
+      if (coordinates == RepoCoordinates.NONE) {
         continue;
       }
+      String repoName = coordinates.repoSlug;
+      String userName = coordinates.owner;
 
-      String userName = repoUrl.substring(0, repoUrl.lastIndexOf("/" + repoName));
-      if (userName.contains("/")) {
-        userName = userName.substring(userName.indexOf("/") + 1, userName.length());
-      }
-      if (userName.isEmpty()) {
-        logger.log(Level.INFO, "Bitbucket build notifier could not extract the user name from the repository URL: " + repoUrl + " with repository name: " + repoName);
-        continue;
-      }
-
-      String commitId = commitRepoPair.getKey();
+      String commitId = repoCommitPair.getValue();
       if (commitId == null) {
         logger.log(Level.INFO, "Commit ID could not be found!");
         continue;
@@ -134,15 +157,102 @@ class BitbucketBuildStatusHelper {
     return buildStatusResources;
   }
 
+  private static RepoCoordinates parseRepoUrl(String repoUrl) {
+    if (repoUrl.endsWith("/")) {
+      //fix JENKINS-49902
+      repoUrl = repoUrl.substring(0, repoUrl.length() - 1);
+    }
+
+    // extract bitbucket user name and repository name from repo URI
+    int nameStart = repoUrl.lastIndexOf('/') + 1;
+    int gitSuffix = repoUrl.indexOf(".git", nameStart);
+    String repoName = repoUrl.substring(nameStart, gitSuffix >= 0 ? gitSuffix : repoUrl.length());
+    if (repoName.isEmpty()) {
+      logger.log(Level.INFO, "Bitbucket build notifier could not extract the repository name from the repository URL: " + repoUrl);
+      return RepoCoordinates.NONE;
+    }
+
+    String userName = nameStart > 0 ? repoUrl.substring(0, nameStart - 1) : "";
+    userName = userName.substring(userName.indexOf('/') + 1);
+    if (userName.isEmpty()) {
+      logger.log(Level.INFO, "Bitbucket build notifier could not extract the user name from the repository URL: " + repoUrl + " with repository name: " + repoName);
+      return RepoCoordinates.NONE;
+    }
+
+    return new RepoCoordinates(userName, repoName);
+  }
+
   public static List<BitbucketBuildStatusResource> createBuildStatusResources(final Run<?, ?> build,
-                                                                              final String bitbucketHost,
                                                                               TaskListener listener) throws Exception {
     Job<?, ?> project = build.getParent();
     List<BitbucketBuildStatusResource> buildStatusResources = new ArrayList<BitbucketBuildStatusResource>();
 
+    Collection<SCM> scms = getNotifiedSCMs(project);
+    if (scms.isEmpty() && project instanceof WorkflowJob) {
+      listener.error("Not supported project: " + ((WorkflowJob) project).getDefinition().getClass());
+    }
+
+    // every SCM is resolved on its own: from its recorded checkout, else from the revision of the
+    // branch, else from its build data
+    BitbucketCheckoutsAction checkouts = build.getAction(BitbucketCheckoutsAction.class);
+    Environment environment = new Environment(build);
+    for (SCM scm : scms) {
+      List<BitbucketCheckoutsAction.Checkout> recorded = scm != null && checkouts != null ?
+        checkouts.getCheckouts(scm.getKey()) : Collections.<BitbucketCheckoutsAction.Checkout>emptyList();
+      if (!recorded.isEmpty()) {
+        buildStatusResources.addAll(createBuildStatusResources(recorded, listener));
+        continue;
+      }
+      if (scm != null && project instanceof WorkflowJob && isBranchSCM((WorkflowJob) project, scm)) {
+        List<BitbucketBuildStatusResource> fromRevision =
+          createBuildStatusResourcesFromRevision((WorkflowJob) project, build, listener);
+        if (fromRevision != null) {
+          buildStatusResources.addAll(fromRevision);
+          continue;
+        }
+      }
+      if (scm != null) {
+        logger.log(Level.INFO, "SCM key " + scm.getKey() + " Type:" + scm.getType());
+      }
+      buildStatusResources.addAll(createBuildStatusResources(scm, build, environment, listener));
+    }
+
+    return buildStatusResources;
+  }
+
+  private static List<BitbucketBuildStatusResource> createBuildStatusResources(
+    List<BitbucketCheckoutsAction.Checkout> checkouts,
+    TaskListener listener) {
+    List<BitbucketBuildStatusResource> buildStatusResources = new ArrayList<BitbucketBuildStatusResource>();
+    BitbucketHostValidator hostValidator = BitbucketNotifierConfiguration.get().getHostValidator();
+    for (BitbucketCheckoutsAction.Checkout checkout : checkouts) {
+      String bitbucketHost = hostValidator.route(checkout.getHost(), checkout.getPort());
+      if (bitbucketHost == null) {
+        listener.getLogger().println(hostValidator.renderError(checkout.getHost()));
+        continue;
+      }
+      buildStatusResources.add(new BitbucketBuildStatusResource(checkout.getOwner(), checkout.getRepoSlug(),
+        checkout.getCommitId(), bitbucketHost));
+    }
+    return buildStatusResources;
+  }
+
+  private static boolean isBranchSCM(WorkflowJob job, SCM scm) {
+    BranchJobProperty property = job.getProperty(BranchJobProperty.class);
+    if (property == null) {
+      return false;
+    }
+    SCM branchScm = property.getBranch().getScm();
+    return branchScm != null && branchScm.getKey().equals(scm.getKey());
+  }
+
+  /**
+   * @return the SCMs of the job whose revisions the build statuses are sent for
+   */
+  static Collection<SCM> getNotifiedSCMs(Job<?, ?> project) {
+    Collection<SCM> scms = new ArrayList<>();
     if (project instanceof WorkflowJob) {
-      logger.log(Level.INFO, "WorkflowJob");
-      Collection<SCM> scms = new ArrayList<>();
+      logger.log(Level.FINE, "WorkflowJob");
       SCM scmFromBranche = getSCMFromBranche((WorkflowJob) project);
       if (scmFromBranche != null) {
         scms.add(scmFromBranche);
@@ -153,22 +263,78 @@ class BitbucketBuildStatusHelper {
         scms.add(cpsDefinition.getScm());
       }
 
-      if(scms.isEmpty()) {
-        listener.error("Not supported project: " + definition.getClass());
-      }
-
       //fallback but this contains answer only after first successful build. It also contains global library scm
       //scms.addAll(((WorkflowJob) project).getSCMs());
+    }
+    else if (project instanceof AbstractProject) {
+      logger.log(Level.FINE, "AbstractProject: " + project.getClass().getName());
+      scms.add(((AbstractProject) project).getScm());
+    }
 
-      for (SCM scm : scms) {
-        logger.log(Level.INFO, "SCM key " + scm.getKey() + " Type:" + scm.getType());
-        buildStatusResources.addAll(createBuildStatusResources(scm, build, bitbucketHost, listener));
+    return scms;
+  }
+
+  /**
+   * Resolves the repositories and the revision a Git checkout of the build built, whatever host they are on.
+   */
+  static List<BitbucketCheckoutsAction.Checkout> resolveCheckouts(GitSCM scm, Run<?, ?> build) throws Exception {
+    List<BitbucketCheckoutsAction.Checkout> checkouts = new ArrayList<BitbucketCheckoutsAction.Checkout>();
+    BuildData buildData = scm.getBuildData(build);
+    if (buildData == null || buildData.getLastBuiltRevision() == null) {
+      return checkouts;
+    }
+
+    String commitId = buildData.getLastBuiltRevision().getSha1String();
+    Environment environment = new Environment(build);
+    for (RemoteConfig repo : scm.getRepositories()) {
+      URIish repoUri = repo.getURIs().get(0);
+      String repoUrl = environment.expand(repoUri.getPath());
+      RepoCoordinates coordinates = repoCoordinatesCache.get(repoUri.getHost() + repoUrl, key -> parseRepoUrl(repoUrl));
+      if (coordinates != RepoCoordinates.NONE) {
+        checkouts.add(new BitbucketCheckoutsAction.Checkout(scm.getKey(), repoUri.toString(), repoUri.getHost(),
+          repoUri.getPort(), coordinates.owner, coordinates.repoSlug, commitId));
       }
     }
-    else if (project instanceof AbstractProject) {
-      logger.log(Level.INFO, "AbstractProject: " + project.getClass().getName());
-      SCM scm = ((AbstractProject) project).getScm();
-      buildStatusResources = createBuildStatusResources(scm, build, bitbucketHost, listener);
+
+    return checkouts;
+  }
+
+  /**
+   * Resolves the resource of a multibranch build from the Git source of its branch and the revision scm-api
+   * recorded for the build.
+   *
+   * @return null if the build has no such revision
+   */
+  private static List<BitbucketBuildStatusResource> createBuildStatusResourcesFromRevision(
+    final WorkflowJob job,
+    final Run<?, ?> build,
+    TaskListener listener) throws Exception {
+    BranchJobProperty property = job.getProperty(BranchJobProperty.class);
+    if (property == null || !(job.getParent() instanceof WorkflowMultiBranchProject)) {
+      return null;
+    }
+    SCMSource source = ((WorkflowMultiBranchProject) job.getParent()).getSCMSource(property.getBranch().getSourceId());
+    if (!(source instanceof AbstractGitSCMSource)) {
+      return null;
+    }
+    SCMRevision revision = SCMRevisionAction.getRevision(source, build);
+    if (!(revision instanceof AbstractGitSCMSource.SCMRevisionImpl)) {
+      return null;
+    }
+
+    List<BitbucketBuildStatusResource> buildStatusResources = new ArrayList<BitbucketBuildStatusResource>();
+    URIish repoUri = new URIish(((AbstractGitSCMSource) source).getRemote());
+    BitbucketHostValidator hostValidator = BitbucketNotifierConfiguration.get().getHostValidator();
+    String bitbucketHost = hostValidator.route(repoUri.getHost(), repoUri.getPort());
+    if (bitbucketHost == null) {
+      listener.getLogger().println(hostValidator.renderError(repoUri.getHost()));
+      return buildStatusResources;
+    }
+    String repoUrl = repoUri.getPath();
+    RepoCoordinates coordinates = repoCoordinatesCache.get(repoUri.getHost() + repoUrl, key -> parseRepoUrl(repoUrl));
+    if (coordinates != RepoCoordinates.NONE) {
+      buildStatusResources.add(new BitbucketBuildStatusResource(coordinates.owner, coordinates.repoSlug,
+        ((AbstractGitSCMSource.SCMRevisionImpl) revision).getHash(), bitbucketHost));
     }
 
     return buildStatusResources;
@@ -268,18 +434,23 @@ class BitbucketBuildStatusHelper {
     return state;
   }
 
-  public static void notifyBuildStatus(
-    UsernamePasswordCredentials credentials,
+  public static CompletableFuture<Void> notifyBuildStatus(
+    StandardCredentials credentials,
     String bitbucketHost,
     boolean overrideLatestBuild,
     final Run<?, ?> build,
     final TaskListener listener
   ) throws Exception {
-    notifyBuildStatus(credentials, bitbucketHost, overrideLatestBuild, build, listener, createBitbucketBuildStatusFromBuild(build, overrideLatestBuild), null, null);
+    return notifyBuildStatus(credentials, bitbucketHost, overrideLatestBuild, build, listener, createBitbucketBuildStatusFromBuild(build, overrideLatestBuild), null, null);
   }
 
-  public static void notifyBuildStatus(
-    UsernamePasswordCredentials credentials,
+  /**
+   * Resolves the Bitbucket resources of the build and queues the status for each of them.
+   * The returned future completes once every status was delivered, parked or given up, and only
+   * fails if a status could not be sent at all.
+   */
+  public static CompletableFuture<Void> notifyBuildStatus(
+    StandardCredentials credentials,
     String bitbucketHost,
     boolean overrideLatestBuild,
     final Run<?, ?> build,
@@ -288,79 +459,137 @@ class BitbucketBuildStatusHelper {
     String repoSlug,
     String commitId
   ) throws Exception {
+    List<BitbucketBuildStatusResource> buildStatusResources = resolveBuildStatusResources(bitbucketHost,
+      overrideLatestBuild, build, listener, buildStatus, repoSlug, commitId);
+    return BitbucketNotificationService.allOf(
+      submitBuildStatus(credentials, build, listener, buildStatus, buildStatusResources));
+  }
 
-    List<BitbucketBuildStatusResource> buildStatusResources = createBuildStatusResources(build, bitbucketHost, listener);
+  /**
+   * Finds the Bitbucket resources the status of the build is reported to. If the previous build was
+   * aborted after Bitbucket took its status for the same revision, the key of the status is changed to the key of that build.
+   * A status for an explicit commit is sent to the given instance as it is, without looking at the
+   * SCM or the previous build, the repository slug is only used to report on it.
+   *
+   * @param bitbucketHost the instance a status for an explicit commit is sent to, null if only one is configured
+   */
+  static List<BitbucketBuildStatusResource> resolveBuildStatusResources(
+    String bitbucketHost,
+    boolean overrideLatestBuild,
+    final Run<?, ?> build,
+    final TaskListener listener,
+    BitbucketBuildStatus buildStatus,
+    String repoSlug,
+    String commitId
+  ) throws Exception {
 
-    Run<?, ?> prevBuild = build.getPreviousBuild();
-    List<BitbucketBuildStatusResource> prevBuildStatusResources = new ArrayList<BitbucketBuildStatusResource>();
-    if (prevBuild != null && prevBuild.getResult() != null && prevBuild.getResult() == Result.ABORTED) {
-      prevBuildStatusResources = createBuildStatusResources(prevBuild, bitbucketHost, listener);
+    if (commitId != null) {
+      return Collections.singletonList(explicitBuildStatusResource(bitbucketHost, repoSlug, commitId));
     }
 
+    List<BitbucketBuildStatusResource> buildStatusResources = createBuildStatusResources(build, listener);
+
+    BitbucketBuildKeyIndex keyIndex = BitbucketBuildKeyIndex.of(build.getParent());
     for (BitbucketBuildStatusResource buildStatusResource : buildStatusResources) {
 
       // if previous build was manually aborted by the user and revision is the same than the current one
-      // then update the bitbucket build status resource with current status and current build number
-      for (BitbucketBuildStatusResource prevBuildStatusResource : prevBuildStatusResources) {
-        if (prevBuildStatusResource.getCommitId().equals(buildStatusResource.getCommitId())) {
-          BitbucketBuildStatus prevBuildStatus = createBitbucketBuildStatusFromBuild(prevBuild, overrideLatestBuild);
-          buildStatus.setKey(prevBuildStatus.getKey());
-
-          break;
-        }
+      // then update its bitbucket build status with current status and current build number
+      String abortedKey = keyIndex.abortedKey(buildStatusResource.getCommitId(), build.getNumber());
+      if (abortedKey != null) {
+        buildStatus.setKey(abortedKey);
+        break;
       }
+    }
 
-      if (repoSlug != null && commitId != null) {
-        buildStatusResource = new BitbucketBuildStatusResource(buildStatusResource.getOwner(), repoSlug, commitId, bitbucketHost);
-      }
+    return buildStatusResources;
+  }
+
+  /**
+   * The status url only needs the host and the commit, so a status for an explicit commit needs no
+   * repository to be resolved.
+   *
+   * @param bitbucketHost the url of the instance or of a repository on it, null if only one instance is configured
+   */
+  static BitbucketBuildStatusResource explicitBuildStatusResource(String bitbucketHost, String repoSlug,
+                                                                  String commitId) throws Exception {
+    return new BitbucketBuildStatusResource(null, repoSlug, commitId,
+      BitbucketNotifierConfiguration.get().getExplicitInstance(bitbucketHost));
+  }
 
-      sendBuildStatusNotification(credentials, build, buildStatusResource, buildStatus, listener);
+  /**
+   * Queues the status for each of the resources.
+   *
+   * @return the delivery of the status to each resource, in the order of the resources
+   */
+  static List<CompletableFuture<BitbucketNotificationOutcome>> submitBuildStatus(
+    StandardCredentials credentials,
+    final Run<?, ?> build,
+    final TaskListener listener,
+    BitbucketBuildStatus buildStatus,
+    List<BitbucketBuildStatusResource> buildStatusResources
+  ) {
+    BitbucketBuildKeyIndex keyIndex = BitbucketBuildKeyIndex.of(build.getParent());
+    String key = buildStatus.getKey();
+    List<CompletableFuture<BitbucketNotificationOutcome>> results =
+      new ArrayList<CompletableFuture<BitbucketNotificationOutcome>>();
+    for (BitbucketBuildStatusResource buildStatusResource : buildStatusResources) {
+      CompletableFuture<BitbucketNotificationOutcome> result = BitbucketNotificationService.get().submit(
+        new BitbucketNotification(credentials, build, buildStatusResource, buildStatus, listener));
+      // only a status Bitbucket has can be taken over by the next build
+      result.thenAccept(outcome -> {
+        if (outcome.isSent()) {
+          keyIndex.sent(buildStatusResource.getCommitId(), key, build.getNumber(),
+            build.isBuilding() ? null : build.getResult());
+        }
+      });
+      results.add(result);
     }
+
+    return results;
   }
 
-  private static OkHttpClient createClient() {
-    return new OkHttpClient.Builder()
-      .connectTimeout(30, TimeUnit.SECONDS)
-      .readTimeout(60, TimeUnit.SECONDS)
-      .build();
+  /**
+   * @return the given credentials, or if there are none the credentials of the Bitbucket instance of the resource.
+   * Those are global credentials, a folder of the job cannot shadow them.
+   */
+  static StandardCredentials credentialsFor(StandardCredentials credentials, BitbucketBuildStatusResource resource) {
+    if (credentials != null) {
+      return credentials;
+    }
+    return getCredentials(BitbucketNotifierConfiguration.get().getCredentialsId(resource.getBitbucketHost()), null);
   }
 
-  public static void sendBuildStatusNotification(final UsernamePasswordCredentials credentials,
-                                                 final Run<?, ?> build,
-                                                 final BitbucketBuildStatusResource buildStatusResource,
-                                                 final BitbucketBuildStatus buildStatus,
-                                                 final TaskListener listener) throws Exception {
+  public static Response sendBuildStatusNotification(final StandardCredentials credentials,
+                                                     final BitbucketBuildStatusResource buildStatusResource,
+                                                     final BitbucketBuildStatus buildStatus) throws Exception {
     if (credentials == null) {
-      throw new Exception("Credentials could not be found!");
+      throw new Exception("Credentials could not be found for Bitbucket instance " +
+                          buildStatusResource.getBitbucketHost() + "!");
     }
 
 
-    GsonBuilder gsonBuilder = new GsonBuilder();
-    gsonBuilder.registerTypeAdapter(BitbucketBuildStatus.class, new BitbucketBuildStatusSerializer());
-    gsonBuilder.setPrettyPrinting();
-    Gson gson = gsonBuilder.create();
-
     Interceptor logRequests = chain -> {
       Request request = chain.request();
-      Buffer sink = new Buffer();
-      request.newBuilder().build().body().writeTo(sink);
+      if (logger.isLoggable(Level.FINE)) {
+        Buffer sink = new Buffer();
+        request.body().writeTo(sink);
+        logger.fine("REQUEST BODY:" + sink.readUtf8());
+      }
       logger.info("REQUEST INFO:" + request.toString());
-      logger.info("REQUEST BODY:" + sink.readUtf8());
       return chain.proceed(request);
     };
 
-    OkHttpClient client = createClient().newBuilder()
-      .authenticator((route, response) -> {
-        String credential = Credentials.basic(credentials.getUsername(), credentials.getPassword().getPlainText());
-        return response.request().newBuilder().header("Authorization", credential).build();
-      })
+    // derived clients share the connection pool and dispatcher of the pooled host client
+    OkHttpClient client = BitbucketClientRegistry.get().getClient(buildStatusResource.getBitbucketHost()).newBuilder()
       .addInterceptor(logRequests)
       .build();
 
-    RequestBody body = RequestBody.create(MediaType.parse("application/json; charset=utf-8"), gson.toJson(buildStatus));
+    RequestBody body = BitbucketBuildStatusEncoder.requestBody(buildStatus);
     String generateUrl = buildStatusResource.generateUrl("POST");
     Request request = new Request.Builder()
       .url(generateUrl)
+      // authenticate preemptively, Bitbucket would otherwise answer the first attempt with a 401
+      .header("Authorization", BitbucketAuthorization.header(credentials))
       .post(body)
       .build();
 
@@ -372,18 +601,13 @@ class BitbucketBuildStatusHelper {
     logger.info("This response was received STATUS: " + response.code());
     logger.info("This response was received message: " + response.message());
     logger.info("This response was received: " + response.body().string());
-    listener.getLogger().println("Sending build status " + buildStatus.getState() +
-                                 " for commit " + buildStatusResource.getCommitId() + " to BitBucket is done!");
-    listener.getLogger().println("Sent build status with http status code:" + response.code());
+
+    return response;
   }
 
-  public static StandardUsernamePasswordCredentials getCredentials(String credentialsId, Job<?, ?> owner) {
+  public static StandardCredentials getCredentials(String credentialsId, Job<?, ?> owner) {
     if (credentialsId != null) {
-      for (StandardUsernamePasswordCredentials c : CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class, owner, null, Collections.<DomainRequirement>emptyList())) {
-        if (c.getId().equals(credentialsId)) {
-          return c;
-        }
-      }
+      return BitbucketCredentialsCache.get(credentialsId, owner);
     }
 
     return null;
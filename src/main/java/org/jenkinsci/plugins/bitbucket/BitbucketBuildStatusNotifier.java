@@ -25,8 +25,8 @@
 package org.jenkinsci.plugins.bitbucket;
 
 import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.common.StandardUsernameListBoxModel;
-import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
@@ -37,15 +37,24 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
-import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketAuthorization;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketClientRegistry;
+import org.jenkinsci.plugins.bitbucket.http.CircuitBreaker;
+import org.jenkinsci.plugins.bitbucket.http.RetryPolicy;
+import org.jenkinsci.plugins.bitbucket.http.TokenBucketRateLimiter;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
-import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +66,7 @@ public class BitbucketBuildStatusNotifier extends Notifier {
   private final boolean notifyFinish;
   private final boolean overrideLatestBuild;
   private final String credentialsId;
+  private boolean waitForDelivery;
 
   @DataBoundConstructor
   public BitbucketBuildStatusNotifier(final boolean notifyStart, final boolean notifyFinish,
@@ -80,22 +90,28 @@ public class BitbucketBuildStatusNotifier extends Notifier {
     return this.overrideLatestBuild;
   }
 
+  public boolean getWaitForDelivery() {
+    return this.waitForDelivery;
+  }
+
+  @DataBoundSetter
+  public void setWaitForDelivery(boolean waitForDelivery) {
+    this.waitForDelivery = waitForDelivery;
+  }
+
   public String getCredentialsId() {
-    return this.credentialsId != null ? this.credentialsId : this.getDescriptor().getGlobalCredentialsId();
+    return this.credentialsId != null ? this.credentialsId : BitbucketNotifierConfiguration.get().getGlobalCredentialsId();
   }
 
-  private StandardUsernamePasswordCredentials getCredentials(AbstractBuild<?, ?> build) {
-    StandardUsernamePasswordCredentials credentials = BitbucketBuildStatusHelper
-      .getCredentials(getCredentialsId(), build.getProject());
-    if (credentials == null) {
-      credentials = BitbucketBuildStatusHelper
-        .getCredentials(this.getDescriptor().getGlobalCredentialsId(), null);
-    }
-    return credentials;
+  /**
+   * @return the credentials of the job, null to use the ones of the Bitbucket instance of each repository
+   */
+  private StandardCredentials getCredentials(AbstractBuild<?, ?> build) {
+    return BitbucketBuildStatusHelper.getCredentials(this.credentialsId, build.getProject());
   }
 
   private String getBitbucketHost() {
-    return this.getDescriptor().getGlobalCredentialsId();
+    return BitbucketNotifierConfiguration.get().getBitbucketHost();
   }
 
   @Override
@@ -106,20 +122,23 @@ public class BitbucketBuildStatusNotifier extends Notifier {
     logger.info("Bitbucket notify on start");
 
     try {
-      BitbucketBuildStatusHelper.notifyBuildStatus(
+      CompletableFuture<Void> result = BitbucketBuildStatusHelper.notifyBuildStatus(
         this.getCredentials(build),
         this.getBitbucketHost(),
         this.getOverrideLatestBuild(),
         build,
         listener
       );
+      if (this.waitForDelivery) {
+        BitbucketNotificationService.await(result);
+      }
     }
     catch (Exception e) {
       listener.getLogger().println("Bitbucket notify on start failed: " + e.getMessage());
       e.printStackTrace(listener.getLogger());
     }
 
-    logger.info("Bitbucket notify on start succeeded");
+    logger.info("Bitbucket notify on start queued");
 
     return true;
   }
@@ -132,12 +151,15 @@ public class BitbucketBuildStatusNotifier extends Notifier {
     logger.info("Bitbucket notify on finish");
 
     try {
-      BitbucketBuildStatusHelper.notifyBuildStatus(
+      CompletableFuture<Void> result = BitbucketBuildStatusHelper.notifyBuildStatus(
         this.getCredentials(build),
         this.getBitbucketHost(),
         this.getOverrideLatestBuild(),
         build,
         listener);
+      if (this.waitForDelivery) {
+        BitbucketNotificationService.await(result);
+      }
     }
     catch (Exception e) {
       logger.log(Level.INFO, "Bitbucket notify on finish failed: " + e.getMessage(), e);
@@ -145,7 +167,7 @@ public class BitbucketBuildStatusNotifier extends Notifier {
       e.printStackTrace(listener.getLogger());
     }
 
-    logger.info("Bitbucket notify on finish succeeded");
+    logger.info("Bitbucket notify on finish queued");
 
     return true;
   }
@@ -170,26 +192,189 @@ public class BitbucketBuildStatusNotifier extends Notifier {
   @Extension // This indicates to Jenkins that this is an implementation of an extension point.
   public static class DescriptorImpl extends BuildStepDescriptor<Publisher> {
 
+    private List<BitbucketInstance> instances = new ArrayList<BitbucketInstance>();
+    // settings of the single Bitbucket instance of older versions, moved into the instances when loaded
     private String globalCredentialsId;
     private String bitbucketHost;
+    private int maxIdleConnections = BitbucketClientRegistry.DEFAULT_MAX_IDLE_CONNECTIONS;
+    private long keepAliveSeconds = BitbucketClientRegistry.DEFAULT_KEEP_ALIVE_SECONDS;
+    private int notificationWorkers = BitbucketNotificationService.DEFAULT_WORKERS;
+    private int notificationQueueCapacity = BitbucketNotificationService.DEFAULT_QUEUE_CAPACITY;
+    private long inProgressMaxDeferralSeconds = BitbucketNotificationQueue.DEFAULT_MAX_DEFERRAL_SECONDS;
+    private int retryMaxAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+    private long retryInitialDelaySeconds = RetryPolicy.DEFAULT_INITIAL_DELAY_SECONDS;
+    private long retryMaxDelaySeconds = RetryPolicy.DEFAULT_MAX_DELAY_SECONDS;
+    private int circuitBreakerFailureRate = CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int circuitBreakerSlowCallRate = CircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private long circuitBreakerSlowCallSeconds = CircuitBreaker.DEFAULT_SLOW_CALL_SECONDS;
+    private long circuitBreakerOpenSeconds = CircuitBreaker.DEFAULT_OPEN_SECONDS;
+    private int rateLimitPerSecond = TokenBucketRateLimiter.DEFAULT_PERMITS_PER_SECOND;
+    private int rateLimitBurst = TokenBucketRateLimiter.DEFAULT_BURST;
 
     public DescriptorImpl() {
       load();
+      this.instances = BitbucketInstance.migrate(this.instances, this.bitbucketHost, this.globalCredentialsId);
+      this.bitbucketHost = null;
+      this.globalCredentialsId = null;
+      applyConfiguration();
+    }
+
+    public List<BitbucketInstance> getInstances() {
+      return this.instances;
+    }
+
+    public void setInstances(List<BitbucketInstance> instances) {
+      this.instances = instances != null ? new ArrayList<BitbucketInstance>(instances) : new ArrayList<BitbucketInstance>();
     }
 
     public String getGlobalCredentialsId() {
-      return this.globalCredentialsId;
+      return BitbucketNotifierConfiguration.get().getGlobalCredentialsId();
     }
+
     public String getBitbucketHost() {
-      return this.bitbucketHost;
+      return BitbucketNotifierConfiguration.get().getBitbucketHost();
+    }
+
+    public int getMaxIdleConnections() {
+      return this.maxIdleConnections;
+    }
+
+    public void setMaxIdleConnections(int maxIdleConnections) {
+      this.maxIdleConnections = maxIdleConnections;
+    }
+
+    public long getKeepAliveSeconds() {
+      return this.keepAliveSeconds;
+    }
+
+    public void setKeepAliveSeconds(long keepAliveSeconds) {
+      this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public int getNotificationWorkers() {
+      return this.notificationWorkers;
+    }
+
+    public void setNotificationWorkers(int notificationWorkers) {
+      this.notificationWorkers = notificationWorkers;
+    }
+
+    public int getNotificationQueueCapacity() {
+      return this.notificationQueueCapacity;
+    }
+
+    public void setNotificationQueueCapacity(int notificationQueueCapacity) {
+      this.notificationQueueCapacity = notificationQueueCapacity;
+    }
+
+    public long getInProgressMaxDeferralSeconds() {
+      return this.inProgressMaxDeferralSeconds;
+    }
+
+    public void setInProgressMaxDeferralSeconds(long inProgressMaxDeferralSeconds) {
+      this.inProgressMaxDeferralSeconds = inProgressMaxDeferralSeconds;
+    }
+
+    public int getRetryMaxAttempts() {
+      return this.retryMaxAttempts;
+    }
+
+    public void setRetryMaxAttempts(int retryMaxAttempts) {
+      this.retryMaxAttempts = retryMaxAttempts;
     }
 
-    public void setGlobalCredentialsId(String globalCredentialsId) {
-      this.globalCredentialsId = globalCredentialsId;
+    public long getRetryInitialDelaySeconds() {
+      return this.retryInitialDelaySeconds;
     }
 
-    public void setBitbucketHost(String host) {
-      this.bitbucketHost = host;
+    public void setRetryInitialDelaySeconds(long retryInitialDelaySeconds) {
+      this.retryInitialDelaySeconds = retryInitialDelaySeconds;
+    }
+
+    public long getRetryMaxDelaySeconds() {
+      return this.retryMaxDelaySeconds;
+    }
+
+    public void setRetryMaxDelaySeconds(long retryMaxDelaySeconds) {
+      this.retryMaxDelaySeconds = retryMaxDelaySeconds;
+    }
+
+    public int getCircuitBreakerFailureRate() {
+      return this.circuitBreakerFailureRate;
+    }
+
+    public void setCircuitBreakerFailureRate(int circuitBreakerFailureRate) {
+      this.circuitBreakerFailureRate = circuitBreakerFailureRate;
+    }
+
+    public int getCircuitBreakerSlowCallRate() {
+      return this.circuitBreakerSlowCallRate;
+    }
+
+    public void setCircuitBreakerSlowCallRate(int circuitBreakerSlowCallRate) {
+      this.circuitBreakerSlowCallRate = circuitBreakerSlowCallRate;
+    }
+
+    public long getCircuitBreakerSlowCallSeconds() {
+      return this.circuitBreakerSlowCallSeconds;
+    }
+
+    public void setCircuitBreakerSlowCallSeconds(long circuitBreakerSlowCallSeconds) {
+      this.circuitBreakerSlowCallSeconds = circuitBreakerSlowCallSeconds;
+    }
+
+    public long getCircuitBreakerOpenSeconds() {
+      return this.circuitBreakerOpenSeconds;
+    }
+
+    public void setCircuitBreakerOpenSeconds(long circuitBreakerOpenSeconds) {
+      this.circuitBreakerOpenSeconds = circuitBreakerOpenSeconds;
+    }
+
+    public int getRateLimitPerSecond() {
+      return this.rateLimitPerSecond;
+    }
+
+    public void setRateLimitPerSecond(int rateLimitPerSecond) {
+      this.rateLimitPerSecond = rateLimitPerSecond;
+    }
+
+    public int getRateLimitBurst() {
+      return this.rateLimitBurst;
+    }
+
+    public void setRateLimitBurst(int rateLimitBurst) {
+      this.rateLimitBurst = rateLimitBurst;
+    }
+
+    void applyConfiguration() {
+      BitbucketNotifierConfiguration.publish(new BitbucketNotifierConfiguration(this.instances));
+      Map<String, BitbucketClientRegistry.PoolSettings> hostSettings =
+        new HashMap<String, BitbucketClientRegistry.PoolSettings>();
+      for (BitbucketInstance instance : this.instances) {
+        if (instance.getUrl() != null && (instance.getMaxIdleConnections() > 0 || instance.getKeepAliveSeconds() > 0)) {
+          hostSettings.put(instance.getUrl(),
+            new BitbucketClientRegistry.PoolSettings(instance.getMaxIdleConnections(), instance.getKeepAliveSeconds()));
+        }
+      }
+      BitbucketClientRegistry.get().reconfigure(this.maxIdleConnections, this.keepAliveSeconds, hostSettings);
+      BitbucketNotificationService.get().reconfigure(this.notificationWorkers, this.notificationQueueCapacity,
+        this.inProgressMaxDeferralSeconds);
+      Map<String, RetryPolicy> hostRetryPolicies = new HashMap<String, RetryPolicy>();
+      for (BitbucketInstance instance : this.instances) {
+        if (instance.getUrl() != null && instance.hasRetrySettings()) {
+          hostRetryPolicies.put(instance.getUrl(), new RetryPolicy(
+            instance.getRetryMaxAttempts() > 0 ? instance.getRetryMaxAttempts() : this.retryMaxAttempts,
+            instance.getRetryInitialDelaySeconds() > 0 ? instance.getRetryInitialDelaySeconds() : this.retryInitialDelaySeconds,
+            instance.getRetryMaxDelaySeconds() > 0 ? instance.getRetryMaxDelaySeconds() : this.retryMaxDelaySeconds));
+        }
+      }
+      BitbucketNotificationService.get().setRetryPolicies(
+        new RetryPolicy(this.retryMaxAttempts, this.retryInitialDelaySeconds, this.retryMaxDelaySeconds),
+        hostRetryPolicies);
+      BitbucketNotificationService.get().reconfigureCircuitBreakers(this.circuitBreakerFailureRate,
+        this.circuitBreakerSlowCallRate, this.circuitBreakerSlowCallSeconds, this.circuitBreakerOpenSeconds);
+      BitbucketNotificationService.get().reconfigureRateLimiters(this.rateLimitPerSecond, this.rateLimitBurst);
     }
 
     @Override
@@ -204,26 +389,20 @@ public class BitbucketBuildStatusNotifier extends Notifier {
 
     @Override
     public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+      // instances that were all removed are missing from the form
+      this.instances = new ArrayList<BitbucketInstance>();
       req.bindJSON(this, formData.getJSONObject("bitbucket-build-status-notifier"));
       save();
+      applyConfiguration();
 
       return true;
     }
 
-    public FormValidation doCheckBitbucketHost(@QueryParameter final String bitbucketHost,
-                                               @AncestorInPath final Job<?,?> owner) {
-      if(!bitbucketHost.startsWith("http")) {
-        return FormValidation.error("Please enter full url of host (with http)");
-      }
-      return FormValidation.ok();
-    }
-
-    public ListBoxModel doFillGlobalCredentialsIdItems() {
-      Job owner = null;
-
-      return new StandardUsernameListBoxModel()
+    public ListBoxModel doFillCredentialsIdItems(@AncestorInPath final Job<?, ?> owner) {
+      return new StandardListBoxModel()
         .includeEmptyValue()
-        .withAll(CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class, owner, null));
+        .withMatching(BitbucketAuthorization.SUPPORTED_CREDENTIALS,
+          CredentialsProvider.lookupCredentials(StandardCredentials.class, owner, null));
     }
   }
 }
@@ -24,17 +24,17 @@
 
 package org.jenkinsci.plugins.bitbucket;
 
-import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.XmlFile;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
 import org.jenkinsci.plugins.bitbucket.validator.BitbucketHostValidator;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.*;
@@ -42,9 +42,11 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import javax.annotation.Nonnull;
-import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 public class BitbucketBuildStatusNotifierStep extends Step {
@@ -58,6 +60,8 @@ public class BitbucketBuildStatusNotifierStep extends Step {
   private String buildState;
   private String repoSlug;
   private String commitId;
+  private String bitbucketHost;
+  private boolean wait = true;
 
   @DataBoundConstructor
   public BitbucketBuildStatusNotifierStep(final String buildState) {
@@ -122,6 +126,31 @@ public class BitbucketBuildStatusNotifierStep extends Step {
     this.commitId = commitId;
   }
 
+  public String getBitbucketHost() {
+    return this.bitbucketHost;
+  }
+
+  /**
+   * The Bitbucket instance a status for {@code commitId} is sent to, only needed when more than one is configured.
+   */
+  @DataBoundSetter
+  public void setBitbucketHost(String bitbucketHost) {
+    this.bitbucketHost = bitbucketHost;
+  }
+
+  public boolean isWait() {
+    return this.wait;
+  }
+
+  /**
+   * With {@code wait: false} the step returns as soon as the status is queued. Failures are
+   * reported to the build log and listed on the build page by a {@link BitbucketBuildStatusFailuresAction}.
+   */
+  @DataBoundSetter
+  public void setWait(boolean wait) {
+    this.wait = wait;
+  }
+
   @Override
   public StepExecution start(StepContext context) throws Exception {
     return new Execution(this, context);
@@ -132,40 +161,22 @@ public class BitbucketBuildStatusNotifierStep extends Step {
     return Jenkins.getInstanceOrNull().getDescriptorByType(DescriptorImpl.class);
   }
 
-  private StandardUsernamePasswordCredentials getCredentials(Run<?, ?> build) {
-    StandardUsernamePasswordCredentials credentials = BitbucketBuildStatusHelper
-      .getCredentials(getCredentialsId(), build.getParent());
-    if (credentials == null) {
-      credentials = BitbucketBuildStatusHelper
-        .getCredentials(this.getDescriptor().getGlobalCredentialsId(), null);
-    }
-    return credentials;
-  }
-
-  private String getBitbucketHost() {
-    return getDescriptor().getBitbucketHost();
+  /**
+   * @return the credentials given to the step, null to use the ones of the Bitbucket instance of each repository
+   */
+  static StandardCredentials getCredentials(String credentialsId, Run<?, ?> build) {
+    return BitbucketBuildStatusHelper.getCredentials(credentialsId, build.getParent());
   }
 
   @Extension
   public static class DescriptorImpl extends StepDescriptor {
 
-    private String globalCredentialsId;
-    private String bitbucketHost;
-
     public String getGlobalCredentialsId() {
-      return globalCredentialsId;
-    }
-
-    public void setGlobalCredentialsId(String globalCredentialsId) {
-      this.globalCredentialsId = globalCredentialsId;
+      return BitbucketNotifierConfiguration.get().getGlobalCredentialsId();
     }
 
     public String getBitbucketHost() {
-      return bitbucketHost;
-    }
-
-    public void setBitbucketHost(String bitbucketHost) {
-      this.bitbucketHost = bitbucketHost;
+      return BitbucketNotifierConfiguration.get().getBitbucketHost();
     }
 
     @Override
@@ -173,11 +184,6 @@ public class BitbucketBuildStatusNotifierStep extends Step {
       return ImmutableSet.of(FilePath.class, FlowNode.class, TaskListener.class, Launcher.class);
     }
 
-    @Override
-    protected XmlFile getConfigFile() {
-      return new XmlFile(new File(Jenkins.getInstanceOrNull().getRootDir(), this.getId().replace("Step", "") + ".xml"));
-    }
-
     @Override
     public String getFunctionName() {
       return "bitbucketStatusNotify";
@@ -190,56 +196,139 @@ public class BitbucketBuildStatusNotifierStep extends Step {
     }
   }
 
-  public static class Execution extends SynchronousNonBlockingStepExecution<Void> {
-    private static final long serialVersionUID = 1L;
-    private transient Run<?, ?> build;
-    private transient TaskListener taskListener;
+  /**
+   * Hands the status over to the {@link BitbucketNotificationService} and completes the step from
+   * the delivery callback, so no thread is held while Bitbucket is contacted. The resolved statuses
+   * are saved with the program and queued again when the build resumes after a restart.
+   */
+  public static class Execution extends StepExecution {
+    private static final long serialVersionUID = 2L;
+
+    private final String credentialsId;
+    private final String buildKey;
+    private final String buildName;
+    private final String buildDescription;
+    private final String buildState;
+    private final String repoSlug;
+    private final String commitId;
+    private final String bitbucketHost;
+    private final boolean wait;
+
+    // set once the status was resolved and queued
+    private volatile BitbucketBuildStatus buildStatus;
+    private volatile List<BitbucketBuildStatusResource> buildStatusResources;
+
+    protected Execution(@Nonnull BitbucketBuildStatusNotifierStep step, @Nonnull StepContext context) {
+      super(context);
+      this.credentialsId = step.getCredentialsId();
+      this.buildKey = step.getBuildKey();
+      this.buildName = step.getBuildName();
+      this.buildDescription = step.getBuildDescription();
+      this.buildState = step.getBuildState();
+      this.repoSlug = step.getRepoSlug();
+      this.commitId = step.getCommitId();
+      this.bitbucketHost = step.getBitbucketHost();
+      this.wait = step.isWait();
+    }
 
-    private transient BitbucketBuildStatusNotifierStep step;
+    @Override
+    public boolean start() throws Exception {
+      // resolving the repositories reads the build environment, which is not done on the CPS thread;
+      // the step fails right away if the service is overloaded
+      BitbucketNotificationService.get().execute(this::notifyBuildStatus);
+      return false;
+    }
 
-    protected Execution(@Nonnull BitbucketBuildStatusNotifierStep step, @Nonnull StepContext context) throws IOException, InterruptedException {
-      super(context);
-      this.step = step;
-      build = context.get(Run.class);
-      taskListener = context.get(TaskListener.class);
+    @Override
+    public void stop(@Nonnull Throwable cause) throws Exception {
+      // statuses already queued are still sent
+      getContext().onFailure(cause);
     }
 
-    private void readGlobalConfiguration() {
-      XmlFile config = step.getDescriptor().getConfigFile();
-      BitbucketBuildStatusNotifier.DescriptorImpl cfg = new BitbucketBuildStatusNotifier.DescriptorImpl();
+    @Override
+    public void onResume() {
       try {
-        config.unmarshal(cfg);
-        step.getDescriptor().setGlobalCredentialsId(cfg.getGlobalCredentialsId());
-        step.getDescriptor().setBitbucketHost(cfg.getBitbucketHost());
+        BitbucketNotificationService.get().execute(this::notifyBuildStatus);
       }
-      catch (IOException e) {
-        logger.warning("Unable to read BitbucketBuildStatusNotifier configuration");
+      catch (RejectedExecutionException e) {
+        getContext().onFailure(e);
       }
     }
 
     @Override
-    public Void run() throws Exception {
-      this.readGlobalConfiguration();
+    public String getStatus() {
+      List<BitbucketBuildStatusResource> resources = this.buildStatusResources;
+      return resources == null ? "resolving Bitbucket repositories" :
+             "waiting for " + resources.size() + " Bitbucket build statuses to be sent";
+    }
 
-      String buildState = step.getBuildState();
+    private void notifyBuildStatus() {
+      final StepContext context = getContext();
+      try {
+        Run<?, ?> build = context.get(Run.class);
+        TaskListener taskListener = context.get(TaskListener.class);
+
+        if (buildStatusResources == null) {
+          resolveBuildStatus(build, taskListener);
+          // a restart from now on queues the resolved statuses again instead of resolving them anew
+          context.saveState();
+        }
+
+        List<CompletableFuture<BitbucketNotificationOutcome>> results = BitbucketBuildStatusHelper.submitBuildStatus(
+          getCredentials(credentialsId, build), build, taskListener, buildStatus, buildStatusResources);
+        if (!wait) {
+          recordFailures(build, results);
+          context.onSuccess(null);
+          return;
+        }
+        BitbucketNotificationService.allOf(results)
+          .whenComplete((result, error) -> {
+            if (error != null) {
+              context.onFailure(BitbucketNotificationService.unwrap(error));
+            }
+            else {
+              context.onSuccess(null);
+            }
+          });
+      }
+      catch (Exception e) {
+        context.onFailure(e);
+      }
+    }
 
-      String buildKey = step.getBuildKey();
+    private void recordFailures(final Run<?, ?> build, List<CompletableFuture<BitbucketNotificationOutcome>> results) {
+      final BitbucketBuildStatus buildStatus = this.buildStatus;
+      for (int i = 0; i < results.size(); i++) {
+        final BitbucketBuildStatusResource resource = buildStatusResources.get(i);
+        results.get(i).whenComplete((outcome, error) -> {
+          if (error != null) {
+            BitbucketBuildStatusFailuresAction.record(build, resource, buildStatus,
+              BitbucketNotificationService.unwrap(error).getMessage());
+          }
+          else if (!outcome.isSent() && outcome.getType() != BitbucketNotificationOutcome.Type.PARKED) {
+            // a parked status is still sent once the host recovered
+            BitbucketBuildStatusFailuresAction.record(build, resource, buildStatus, outcome.getMessage());
+          }
+        });
+      }
+    }
+
+    private void resolveBuildStatus(Run<?, ?> build, TaskListener taskListener) throws Exception {
+      String buildKey = this.buildKey;
       if (buildKey == null) {
         buildKey = BitbucketBuildStatusHelper.uniqueBitbucketBuildKeyFromBuild(build);
       }
 
-      String buildName = step.getBuildName();
+      String buildName = this.buildName;
       if (buildName == null) {
         buildName = BitbucketBuildStatusHelper.defaultBitbucketBuildNameFromBuild(build);
       }
 
-      String buildDescription = step.getBuildDescription();
+      String buildDescription = this.buildDescription;
       if (buildDescription == null) {
         buildDescription = BitbucketBuildStatusHelper.defaultBitbucketBuildDescriptionFromBuild(build);
       }
 
-      String commitId = step.getCommitId();
-      String repoSlug = step.getRepoSlug();
       logger.info("Got commit id " + commitId);
       logger.info("Got repo slug = " + repoSlug);
 
@@ -247,19 +336,10 @@ public class BitbucketBuildStatusNotifierStep extends Step {
 
       BitbucketBuildStatus buildStatus = new BitbucketBuildStatus(buildState, buildKey, buildUrl, buildName,
         buildDescription);
-
-      BitbucketBuildStatusHelper.notifyBuildStatus(
-        step.getCredentials(build),
-        step.getBitbucketHost(),
-        true,
-        build,
-        taskListener,
-        buildStatus,
-        repoSlug,
-        commitId
-      );
-
-      return null;
+      List<BitbucketBuildStatusResource> resources = BitbucketBuildStatusHelper.resolveBuildStatusResources(
+        bitbucketHost, true, build, taskListener, buildStatus, repoSlug, commitId);
+      this.buildStatus = buildStatus;
+      this.buildStatusResources = new ArrayList<BitbucketBuildStatusResource>(resources);
     }
   }
 }
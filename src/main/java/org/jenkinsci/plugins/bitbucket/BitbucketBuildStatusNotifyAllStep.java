@@ -0,0 +1,420 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.google.common.collect.ImmutableSet;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Sends many build statuses, e.g. one per module of a monorepo, in a single step. The statuses are
+ * sent concurrently with at most {@link #getParallelism()} of them outstanding, and the step returns
+ * a map from {@code repoSlug/commitId/key} to {@code OK} or the reason the status was not sent.
+ */
+public class BitbucketBuildStatusNotifyAllStep extends Step {
+
+  private static final Logger logger = Logger.getLogger(BitbucketBuildStatusNotifyAllStep.class.getName());
+
+  static final int DEFAULT_PARALLELISM = 8;
+
+  static final String OK = "OK";
+
+  private final List<Entry> statuses;
+  private String credentialsId;
+  private int parallelism = DEFAULT_PARALLELISM;
+
+  @DataBoundConstructor
+  public BitbucketBuildStatusNotifyAllStep(List<Entry> statuses) {
+    this.statuses = statuses != null ? new ArrayList<Entry>(statuses) : Collections.<Entry>emptyList();
+  }
+
+  public List<Entry> getStatuses() {
+    return Collections.unmodifiableList(this.statuses);
+  }
+
+  public String getCredentialsId() {
+    return this.credentialsId;
+  }
+
+  @DataBoundSetter
+  public void setCredentialsId(String credentialsId) {
+    this.credentialsId = credentialsId;
+  }
+
+  public int getParallelism() {
+    return this.parallelism;
+  }
+
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    // nothing is sent if any of the statuses is incomplete
+    for (int i = 0; i < statuses.size(); i++) {
+      statuses.get(i).validate(i + 1);
+    }
+    return new Execution(this, context);
+  }
+
+  /**
+   * One build status of a {@code bitbucketStatusNotifyAll} call.
+   */
+  public static final class Entry extends AbstractDescribableImpl<Entry> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String commitId;
+    private final String repoSlug;
+    private final String state;
+    private String key;
+    private String name;
+    private String description;
+    private String bitbucketHost;
+
+    @DataBoundConstructor
+    public Entry(String commitId, String repoSlug, String state) {
+      this.commitId = commitId;
+      this.repoSlug = repoSlug;
+      this.state = state;
+    }
+
+    public String getCommitId() {
+      return this.commitId;
+    }
+
+    public String getRepoSlug() {
+      return this.repoSlug;
+    }
+
+    public String getState() {
+      return this.state;
+    }
+
+    public String getKey() {
+      return this.key;
+    }
+
+    @DataBoundSetter
+    public void setKey(String key) {
+      this.key = key;
+    }
+
+    public String getName() {
+      return this.name;
+    }
+
+    @DataBoundSetter
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public String getDescription() {
+      return this.description;
+    }
+
+    @DataBoundSetter
+    public void setDescription(String description) {
+      this.description = description;
+    }
+
+    public String getBitbucketHost() {
+      return this.bitbucketHost;
+    }
+
+    /**
+     * The Bitbucket instance the commit is on, only needed when more than one is configured.
+     */
+    @DataBoundSetter
+    public void setBitbucketHost(String bitbucketHost) {
+      this.bitbucketHost = bitbucketHost;
+    }
+
+    /**
+     * @param position the position of the entry in the list, counted from 1
+     */
+    void validate(int position) throws Exception {
+      if (isBlank(this.commitId)) {
+        throw new Exception("Bitbucket build status " + position + " has no commitId");
+      }
+      if (isBlank(this.repoSlug)) {
+        throw new Exception("Bitbucket build status " + position + " has no repoSlug");
+      }
+      if (!BitbucketBuildStatus.SUCCESSFUL.equals(this.state) && !BitbucketBuildStatus.INPROGRESS.equals(this.state) &&
+          !BitbucketBuildStatus.FAILED.equals(this.state)) {
+        throw new Exception("Bitbucket build status " + position + " has an invalid state: " + this.state);
+      }
+    }
+
+    private static boolean isBlank(String value) {
+      return value == null || value.trim().isEmpty();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<Entry> {
+      @Override
+      @Nonnull
+      public String getDisplayName() {
+        return "Bitbucket build status";
+      }
+    }
+  }
+
+  @Extension
+  public static class DescriptorImpl extends StepDescriptor {
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return ImmutableSet.of(Run.class, TaskListener.class);
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "bitbucketStatusNotifyAll";
+    }
+
+    @Override
+    @Nonnull
+    public String getDisplayName() {
+      return "Notify many build statuses to BitBucket.";
+    }
+  }
+
+  /**
+   * Like the execution of {@code bitbucketStatusNotify} this holds no thread while the statuses
+   * are sent: each completed status queues the next one, the last one completes the step.
+   */
+  public static class Execution extends StepExecution {
+    private static final long serialVersionUID = 1L;
+
+    private final String credentialsId;
+    private final int parallelism;
+    private final List<Entry> entries;
+
+    // set once the statuses were resolved, guarded by this
+    private List<BitbucketBuildStatusResource> resources;
+    private List<BitbucketBuildStatus> buildStatuses;
+    private String[] outcomes;
+    private int completed;
+
+    private transient int next;
+    private transient StandardCredentials credentials;
+    private transient Run<?, ?> build;
+    private transient TaskListener listener;
+
+    protected Execution(@Nonnull BitbucketBuildStatusNotifyAllStep step, @Nonnull StepContext context) {
+      super(context);
+      this.credentialsId = step.getCredentialsId();
+      this.parallelism = step.getParallelism();
+      this.entries = new ArrayList<Entry>(step.getStatuses());
+    }
+
+    @Override
+    public boolean start() throws Exception {
+      // resolving the repositories reads the build environment, which is not done on the CPS thread
+      BitbucketNotificationService.get().execute(this::notifyBuildStatuses);
+      return false;
+    }
+
+    @Override
+    public void stop(@Nonnull Throwable cause) throws Exception {
+      getContext().onFailure(cause);
+    }
+
+    @Override
+    public void onResume() {
+      try {
+        BitbucketNotificationService.get().execute(this::notifyBuildStatuses);
+      }
+      catch (RejectedExecutionException e) {
+        getContext().onFailure(e);
+      }
+    }
+
+    @Override
+    public synchronized String getStatus() {
+      return outcomes == null ? "resolving Bitbucket repositories" :
+             completed + " of " + outcomes.length + " Bitbucket build statuses sent";
+    }
+
+    private void notifyBuildStatuses() {
+      StepContext context = getContext();
+      try {
+        Run<?, ?> build = context.get(Run.class);
+        TaskListener listener = context.get(TaskListener.class);
+        StandardCredentials credentials = BitbucketBuildStatusNotifierStep.getCredentials(credentialsId, build);
+
+        boolean resolved;
+        synchronized (this) {
+          resolved = outcomes != null;
+        }
+        if (!resolved) {
+          resolve(build);
+          // a restart from now on queues the statuses that were not sent yet instead of resolving them anew
+          context.saveState();
+        }
+
+        synchronized (this) {
+          this.build = build;
+          this.listener = listener;
+          this.credentials = credentials;
+          this.next = 0;
+        }
+        if (isDone()) {
+          context.onSuccess(results());
+          return;
+        }
+        for (int i = 0; i < parallelism; i++) {
+          submitNext();
+        }
+      }
+      catch (Exception e) {
+        context.onFailure(e);
+      }
+    }
+
+    private void resolve(Run<?, ?> build) throws Exception {
+      String buildUrl = BitbucketBuildStatusHelper.buildUrlFromBuild(build);
+
+      List<BitbucketBuildStatusResource> resources = new ArrayList<BitbucketBuildStatusResource>(entries.size());
+      List<BitbucketBuildStatus> buildStatuses = new ArrayList<BitbucketBuildStatus>(entries.size());
+      // Bitbucket keeps one status per commit and key, so two entries for the same ones would overwrite each other
+      Map<String, Integer> positions = new HashMap<String, Integer>();
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+        // every entry names its commit, like the explicit commit of bitbucketStatusNotify, so the SCM is not needed
+        BitbucketBuildStatusResource resource = BitbucketBuildStatusHelper.explicitBuildStatusResource(
+          entry.getBitbucketHost(), entry.getRepoSlug(), entry.getCommitId());
+        String key = entry.getKey();
+        if (key == null) {
+          key = BitbucketBuildStatusHelper.uniqueBitbucketBuildKeyFromBuild(build);
+        }
+        Integer other = positions.put(resource.getBitbucketHost() + "|" + entry.getCommitId() + "|" + key, i + 1);
+        if (other != null) {
+          throw new Exception("Bitbucket build statuses " + other + " and " + (i + 1) + " are both for commit " +
+                              entry.getCommitId() + " with key " + key + ", give them distinct keys");
+        }
+        String name = entry.getName();
+        if (name == null) {
+          name = BitbucketBuildStatusHelper.defaultBitbucketBuildNameFromBuild(build);
+        }
+        String description = entry.getDescription();
+        if (description == null) {
+          description = BitbucketBuildStatusHelper.defaultBitbucketBuildDescriptionFromBuild(build);
+        }
+        resources.add(resource);
+        buildStatuses.add(new BitbucketBuildStatus(entry.getState(), key, buildUrl, name, description));
+      }
+      logger.fine("Resolved " + resources.size() + " Bitbucket build statuses for " + build);
+
+      synchronized (this) {
+        this.resources = resources;
+        this.buildStatuses = buildStatuses;
+        this.outcomes = new String[resources.size()];
+      }
+    }
+
+    /**
+     * Queues the next status that was not sent yet, if any.
+     */
+    private void submitNext() {
+      final int index;
+      BitbucketNotification notification;
+      synchronized (this) {
+        while (next < outcomes.length && outcomes[next] != null) {
+          next++;
+        }
+        if (next >= outcomes.length) {
+          return;
+        }
+        index = next++;
+        notification = new BitbucketNotification(credentials, build, resources.get(index), buildStatuses.get(index),
+          listener);
+      }
+      BitbucketNotificationService.get().submit(notification).whenComplete((outcome, error) -> {
+        if (error != null) {
+          completed(index, String.valueOf(BitbucketNotificationService.unwrap(error).getMessage()));
+        }
+        else {
+          completed(index, outcome.isSent() ? OK : outcome.getMessage());
+        }
+        submitNext();
+      });
+    }
+
+    private void completed(int index, String outcome) {
+      boolean done;
+      synchronized (this) {
+        if (outcomes[index] == null) {
+          outcomes[index] = outcome;
+          completed++;
+        }
+        done = isDone();
+      }
+      if (done) {
+        getContext().onSuccess(results());
+      }
+    }
+
+    private synchronized boolean isDone() {
+      return completed == outcomes.length;
+    }
+
+    private synchronized Map<String, String> results() {
+      Map<String, String> results = new LinkedHashMap<String, String>();
+      for (int i = 0; i < outcomes.length; i++) {
+        BitbucketBuildStatusResource resource = resources.get(i);
+        results.put(resource.getRepoSlug() + "/" + resource.getCommitId() + "/" + buildStatuses.get(i).getKey(),
+          outcomes[i]);
+      }
+      return results;
+    }
+  }
+}
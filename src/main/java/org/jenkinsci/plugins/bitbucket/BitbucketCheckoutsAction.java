@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
+import hudson.plugins.git.GitSCM;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The repositories and revisions a build checked out, recorded at checkout for each SCM so that its
+ * build statuses are sent without looking at that SCM again.
+ */
+public class BitbucketCheckoutsAction extends InvisibleAction {
+  private static final Logger logger = Logger.getLogger(BitbucketCheckoutsAction.class.getName());
+
+  // guards adding the action to a build, without locking the build itself
+  private static final Object LOCK = new Object();
+
+  public static final class Checkout {
+    private final String scmKey;
+    private final String remoteUrl;
+    private final String host;
+    private final int port;
+    private final String owner;
+    private final String repoSlug;
+    private final String commitId;
+
+    Checkout(String scmKey, String remoteUrl, String host, int port, String owner, String repoSlug, String commitId) {
+      this.scmKey = scmKey;
+      this.remoteUrl = remoteUrl;
+      this.host = host;
+      this.port = port;
+      this.owner = owner;
+      this.repoSlug = repoSlug;
+      this.commitId = commitId;
+    }
+
+    /**
+     * @return the {@link SCM#getKey() key} of the SCM that checked the repository out
+     */
+    public String getScmKey() {
+      return scmKey;
+    }
+
+    public String getRemoteUrl() {
+      return remoteUrl;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    /**
+     * @return -1 for the default port of the repository url
+     */
+    public int getPort() {
+      // checkouts recorded before the port was recorded
+      return port != 0 ? port : -1;
+    }
+
+    public String getOwner() {
+      return owner;
+    }
+
+    public String getRepoSlug() {
+      return repoSlug;
+    }
+
+    public String getCommitId() {
+      return commitId;
+    }
+
+    boolean sameRepository(Checkout other) {
+      return Objects.equals(scmKey, other.scmKey) && Objects.equals(host, other.host) && port == other.port &&
+             owner.equals(other.owner) && repoSlug.equals(other.repoSlug);
+    }
+  }
+
+  private final List<Checkout> checkouts = new ArrayList<Checkout>();
+
+  public synchronized List<Checkout> getCheckouts() {
+    return new ArrayList<Checkout>(checkouts);
+  }
+
+  /**
+   * @return the repositories the SCM with the given key checked out, empty if it did not check any out
+   */
+  public synchronized List<Checkout> getCheckouts(String scmKey) {
+    List<Checkout> found = new ArrayList<Checkout>();
+    for (Checkout checkout : checkouts) {
+      if (scmKey.equals(checkout.scmKey)) {
+        found.add(checkout);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Adds the checked out repositories, replacing the revision of the ones the same SCM checked out before.
+   */
+  private synchronized void add(List<Checkout> added) {
+    for (Checkout checkout : added) {
+      for (Iterator<Checkout> it = checkouts.iterator(); it.hasNext(); ) {
+        if (it.next().sameRepository(checkout)) {
+          it.remove();
+        }
+      }
+      checkouts.add(checkout);
+    }
+  }
+
+  static void record(Run<?, ?> build, List<Checkout> added) {
+    BitbucketCheckoutsAction action;
+    synchronized (LOCK) {
+      action = build.getAction(BitbucketCheckoutsAction.class);
+      if (action == null) {
+        action = new BitbucketCheckoutsAction();
+        build.addAction(action);
+      }
+    }
+    action.add(added);
+  }
+
+  /**
+   * Records the checkouts of the SCMs the build statuses of a job are sent for.
+   */
+  @Extension
+  public static class Collector extends SCMListener {
+    @Override
+    public void onCheckout(Run<?, ?> build, SCM scm, FilePath workspace, TaskListener listener,
+                           File changelogFile, SCMRevisionState pollingBaseline) {
+      if (!(scm instanceof GitSCM)) {
+        return;
+      }
+      try {
+        for (SCM notified : BitbucketBuildStatusHelper.getNotifiedSCMs(build.getParent())) {
+          if (notified != null && notified.getKey().equals(scm.getKey())) {
+            List<Checkout> checkouts = BitbucketBuildStatusHelper.resolveCheckouts((GitSCM) scm, build);
+            if (!checkouts.isEmpty()) {
+              record(build, checkouts);
+            }
+            return;
+          }
+        }
+      }
+      catch (Exception e) {
+        logger.log(Level.WARNING, "Unable to record the Bitbucket repositories checked out by " + build, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.properties.FolderCredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketAuthorization;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Caches the credentials resolved by id for the folder of a job, so that a notification does not
+ * scan all credentials visible to the job. Entries, also the ones for ids that were not found,
+ * are dropped whenever global or folder credentials were saved and expire after a few minutes,
+ * e.g. for credentials providers that do not save through Jenkins or folders whose credentials
+ * were removed.
+ */
+final class BitbucketCredentialsCache {
+  private static final Logger logger = Logger.getLogger(BitbucketCredentialsCache.class.getName());
+
+  static final int MAX_SIZE = 1000;
+  static final long TTL_MINUTES = 5;
+
+  private static final BoundedCache<Key, Optional<StandardCredentials>> cache =
+    new BoundedCache<Key, Optional<StandardCredentials>>(MAX_SIZE, TTL_MINUTES, TimeUnit.MINUTES);
+
+  private BitbucketCredentialsCache() {
+  }
+
+  // the folder is kept by its name, so a deleted folder is not held on to by the cache
+  private static final class Key {
+    final String credentialsId;
+    final String context;
+
+    Key(String credentialsId, String context) {
+      this.credentialsId = credentialsId;
+      this.context = context;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return credentialsId.equals(other.credentialsId) && context.equals(other.context);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * credentialsId.hashCode() + context.hashCode();
+    }
+  }
+
+  /**
+   * @param owner the job the credentials are used for, null for global credentials
+   */
+  static StandardCredentials get(String credentialsId, Job<?, ?> owner) {
+    ItemGroup<?> context = owner != null ? owner.getParent() : Jenkins.get();
+    return cache.get(new Key(credentialsId, context.getFullName()), key -> lookup(credentialsId, context))
+      .orElse(null);
+  }
+
+  private static Optional<StandardCredentials> lookup(String credentialsId, ItemGroup<?> context) {
+    logger.fine("Looking up credentials " + credentialsId + " for " + context.getFullName());
+    return Optional.ofNullable(CredentialsMatchers.firstOrNull(
+      CredentialsProvider.lookupCredentials(StandardCredentials.class, context, null,
+        Collections.<DomainRequirement>emptyList()),
+      CredentialsMatchers.allOf(CredentialsMatchers.withId(credentialsId),
+        BitbucketAuthorization.SUPPORTED_CREDENTIALS)));
+  }
+
+  static void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Global credentials are saved with the system credentials provider, folder credentials with
+   * their folder. Other folders, like multibranch projects saved on every branch scan, do not
+   * clear the cache.
+   */
+  @Extension
+  public static class SaveListener extends SaveableListener {
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (o instanceof SystemCredentialsProvider || hasCredentials(o)) {
+        invalidateAll();
+      }
+    }
+
+    private static boolean hasCredentials(Saveable o) {
+      return o instanceof AbstractFolder &&
+             ((AbstractFolder<?>) o).getProperties().get(FolderCredentialsProvider.FolderCredentialsProperty.class) != null;
+    }
+  }
+}
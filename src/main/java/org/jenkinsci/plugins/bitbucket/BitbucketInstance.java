@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketAuthorization;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Bitbucket server the build statuses of the repositories it hosts are sent to, with its own
+ * credentials and connection pool settings.
+ */
+public class BitbucketInstance extends AbstractDescribableImpl<BitbucketInstance> {
+  private final String url;
+  private String credentialsId;
+  private int maxIdleConnections;
+  private long keepAliveSeconds;
+  private int retryMaxAttempts;
+  private long retryInitialDelaySeconds;
+  private long retryMaxDelaySeconds;
+
+  @DataBoundConstructor
+  public BitbucketInstance(String url) {
+    this.url = url != null ? url.trim() : null;
+  }
+
+  /**
+   * Moves the single Bitbucket instance of older versions into the list of instances, unless that
+   * already has instances of its own.
+   *
+   * @param instances the loaded instances, null if none were saved
+   * @return the instances to use
+   */
+  static List<BitbucketInstance> migrate(List<BitbucketInstance> instances, String bitbucketHost,
+                                         String globalCredentialsId) {
+    List<BitbucketInstance> migrated = instances != null ? instances : new ArrayList<BitbucketInstance>();
+    if (migrated.isEmpty() && bitbucketHost != null && !bitbucketHost.trim().isEmpty()) {
+      BitbucketInstance instance = new BitbucketInstance(bitbucketHost);
+      instance.setCredentialsId(globalCredentialsId);
+      migrated.add(instance);
+    }
+    return migrated;
+  }
+
+  public String getUrl() {
+    return this.url;
+  }
+
+  public String getCredentialsId() {
+    return this.credentialsId;
+  }
+
+  @DataBoundSetter
+  public void setCredentialsId(String credentialsId) {
+    this.credentialsId = credentialsId == null || credentialsId.isEmpty() ? null : credentialsId;
+  }
+
+  /**
+   * @return idle connections kept to this instance, 0 for the global setting
+   */
+  public int getMaxIdleConnections() {
+    return this.maxIdleConnections;
+  }
+
+  @DataBoundSetter
+  public void setMaxIdleConnections(int maxIdleConnections) {
+    this.maxIdleConnections = maxIdleConnections;
+  }
+
+  /**
+   * @return seconds idle connections to this instance are kept, 0 for the global setting
+   */
+  public long getKeepAliveSeconds() {
+    return this.keepAliveSeconds;
+  }
+
+  @DataBoundSetter
+  public void setKeepAliveSeconds(long keepAliveSeconds) {
+    this.keepAliveSeconds = keepAliveSeconds;
+  }
+
+  /**
+   * @return attempts per build status sent to this instance, 0 for the global setting
+   */
+  public int getRetryMaxAttempts() {
+    return this.retryMaxAttempts;
+  }
+
+  @DataBoundSetter
+  public void setRetryMaxAttempts(int retryMaxAttempts) {
+    this.retryMaxAttempts = retryMaxAttempts;
+  }
+
+  /**
+   * @return seconds before the first retry, 0 for the global setting
+   */
+  public long getRetryInitialDelaySeconds() {
+    return this.retryInitialDelaySeconds;
+  }
+
+  @DataBoundSetter
+  public void setRetryInitialDelaySeconds(long retryInitialDelaySeconds) {
+    this.retryInitialDelaySeconds = retryInitialDelaySeconds;
+  }
+
+  /**
+   * @return maximum seconds between retries, 0 for the global setting
+   */
+  public long getRetryMaxDelaySeconds() {
+    return this.retryMaxDelaySeconds;
+  }
+
+  @DataBoundSetter
+  public void setRetryMaxDelaySeconds(long retryMaxDelaySeconds) {
+    this.retryMaxDelaySeconds = retryMaxDelaySeconds;
+  }
+
+  boolean hasRetrySettings() {
+    return this.retryMaxAttempts > 0 || this.retryInitialDelaySeconds > 0 || this.retryMaxDelaySeconds > 0;
+  }
+
+  @Extension
+  public static class DescriptorImpl extends Descriptor<BitbucketInstance> {
+    @Override
+    @Nonnull
+    public String getDisplayName() {
+      return "Bitbucket instance";
+    }
+
+    public FormValidation doCheckUrl(@QueryParameter final String url) {
+      if (url == null || !url.startsWith("http")) {
+        return FormValidation.error("Please enter full url of host (with http)");
+      }
+      return FormValidation.ok();
+    }
+
+    public ListBoxModel doFillCredentialsIdItems() {
+      return new StandardListBoxModel()
+        .includeEmptyValue()
+        .withMatching(BitbucketAuthorization.SUPPORTED_CREDENTIALS,
+          CredentialsProvider.lookupCredentials(StandardCredentials.class, Jenkins.get(), null));
+    }
+  }
+}
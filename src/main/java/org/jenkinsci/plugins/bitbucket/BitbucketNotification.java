@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A build status waiting to be sent to Bitbucket, together with the build log it reports back to.
+ */
+final class BitbucketNotification {
+  private static final Logger logger = Logger.getLogger(BitbucketNotification.class.getName());
+
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+
+  private final long sequence = SEQUENCE.incrementAndGet();
+  private final BitbucketBuildStatusResource resource;
+  private final String coalescingKey;
+  private final CompletableFuture<BitbucketNotificationOutcome> result =
+    new CompletableFuture<BitbucketNotificationOutcome>();
+
+  // replaced when a newer status for the same commit and key arrives before this one was sent
+  private volatile StandardCredentials credentials;
+  // of credentials that are looked up when the status is sent, see #getCredentials
+  private volatile String credentialsId;
+  private volatile String jobFullName;
+  private volatile BitbucketBuildStatus status;
+  private volatile long journalSequence = -1;
+  private volatile Run<?, ?> build;
+  private volatile TaskListener listener;
+  private volatile int attempts;
+  private volatile boolean parked;
+  private volatile boolean tokenReserved;
+  private volatile long queuedAt;
+
+  /**
+   * @param credentials the credentials of the job, null to send the status with the ones of the
+   *                    Bitbucket instance of the resource, which are looked up when it is sent
+   * @param build       the build the status is reported to, its job is the one the credentials were
+   *                    looked up for and are looked up again for when the notification is replayed
+   *                    from the outbox
+   */
+  BitbucketNotification(StandardCredentials credentials,
+                        Run<?, ?> build,
+                        BitbucketBuildStatusResource resource,
+                        BitbucketBuildStatus status,
+                        TaskListener listener) {
+    this.credentials = credentials;
+    this.jobFullName = build != null ? build.getParent().getFullName() : null;
+    this.build = build;
+    this.resource = resource;
+    // the caller may keep changing its status object while this one waits in the queue
+    this.status = new BitbucketBuildStatus(status.getState(), status.getKey(), status.getUrl(), status.getName(),
+      status.getDescription());
+    this.listener = listener;
+    this.coalescingKey = resource.getBitbucketHost() + "|" + resource.getCommitId() + "|" + status.getKey();
+  }
+
+  /**
+   * A status replayed from the outbox. Its credentials are looked up when it is sent, by then all
+   * credentials providers and folders are loaded.
+   *
+   * @param credentialsId the credentials the status was sent with, null for the ones of the Bitbucket instance
+   */
+  BitbucketNotification(String credentialsId,
+                        String jobFullName,
+                        BitbucketBuildStatusResource resource,
+                        BitbucketBuildStatus status) {
+    this((StandardCredentials) null, (Run<?, ?>) null, resource, status, null);
+    this.credentialsId = credentialsId;
+    this.jobFullName = jobFullName;
+  }
+
+  /**
+   * Statuses with the same key overwrite each other in Bitbucket, so only the latest one for a
+   * host, commit and key needs to be sent.
+   */
+  String getCoalescingKey() {
+    return coalescingKey;
+  }
+
+  /**
+   * @return the credentials to send the status with, looked up first if the status was replayed or
+   * is sent with the credentials of its Bitbucket instance
+   */
+  StandardCredentials getCredentials() {
+    StandardCredentials credentials = this.credentials;
+    if (credentials != null) {
+      return credentials;
+    }
+    String credentialsId = this.credentialsId;
+    if (credentialsId != null) {
+      Jenkins jenkins = Jenkins.getInstanceOrNull();
+      Job<?, ?> job = jenkins != null && jobFullName != null ? jenkins.getItemByFullName(jobFullName, Job.class) : null;
+      credentials = BitbucketBuildStatusHelper.getCredentials(credentialsId, job);
+    }
+    // the credentials of the instance are not remembered, so the journal keeps pointing to the instance
+    return BitbucketBuildStatusHelper.credentialsFor(credentials, resource);
+  }
+
+  /**
+   * @return the id of the credentials of the job to journal, null for the ones of the Bitbucket instance
+   */
+  String getCredentialsId() {
+    StandardCredentials credentials = this.credentials;
+    return credentials != null ? credentials.getId() : credentialsId;
+  }
+
+  String getJobFullName() {
+    return jobFullName;
+  }
+
+  /**
+   * Sequence number of the outbox record holding the current status, -1 if it is not journaled.
+   */
+  long getJournalSequence() {
+    return journalSequence;
+  }
+
+  void setJournalSequence(long journalSequence) {
+    this.journalSequence = journalSequence;
+  }
+
+  BitbucketBuildStatusResource getResource() {
+    return resource;
+  }
+
+  BitbucketBuildStatus getStatus() {
+    return status;
+  }
+
+  TaskListener getListener() {
+    return listener;
+  }
+
+  CompletableFuture<BitbucketNotificationOutcome> getResult() {
+    return result;
+  }
+
+  /**
+   * Increases with the time the notification was created, statuses merged into it keep its place.
+   */
+  long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Terminal statuses are the ones developers and merge checks wait for, they are sent before
+   * statuses of builds still in progress.
+   */
+  boolean isTerminal() {
+    return !BitbucketBuildStatus.INPROGRESS.equals(status.getState());
+  }
+
+  void queued() {
+    queuedAt = System.nanoTime();
+  }
+
+  /**
+   * {@link System#nanoTime()} when the notification was queued for a worker last.
+   */
+  long getQueuedAt() {
+    return queuedAt;
+  }
+
+  /**
+   * Remembers that a rate limiter token was reserved for the next attempt to send the notification.
+   */
+  void tokenReserved() {
+    tokenReserved = true;
+  }
+
+  /**
+   * @return true if a token was reserved for this attempt, which then is used up
+   */
+  boolean takeReservedToken() {
+    boolean reserved = tokenReserved;
+    tokenReserved = false;
+    return reserved;
+  }
+
+  /**
+   * Takes over the status of a newer notification for the same coalescing key. The newer
+   * notification completes together with this one.
+   */
+  void supersede(final BitbucketNotification newer) {
+    log("Build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " was superseded by " + newer.status.getState() + " before it was sent");
+    this.credentials = newer.credentials;
+    this.credentialsId = newer.credentialsId;
+    this.jobFullName = newer.jobFullName;
+    this.status = newer.status;
+    this.journalSequence = newer.journalSequence;
+    this.build = newer.build;
+    this.listener = newer.listener;
+    // the newer status gets its own attempts, even if it was merged into one waiting for a retry
+    this.attempts = 0;
+    result.whenComplete((outcome, error) -> {
+      if (error != null) {
+        newer.result.completeExceptionally(error);
+      }
+      else {
+        newer.result.complete(outcome);
+      }
+    });
+  }
+
+  /**
+   * Lets this notification, which failed and was about to be retried, complete with a newer
+   * notification for the same coalescing key that is sent instead.
+   */
+  void replaceBy(final BitbucketNotification newer) {
+    log("Build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " is not retried, " + newer.status.getState() + " is sent instead");
+    newer.result.whenComplete((outcome, error) -> {
+      if (error != null) {
+        result.completeExceptionally(error);
+      }
+      else {
+        result.complete(outcome);
+      }
+    });
+  }
+
+  int getAttempts() {
+    return attempts;
+  }
+
+  void attempted() {
+    attempts++;
+  }
+
+  void retrying(String reason, long delayMillis, int maxAttempts) {
+    log("Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " to BitBucket failed (" + reason + "), retrying in " + TimeUnit.MILLISECONDS.toSeconds(delayMillis) +
+        "s (attempt " + attempts + " of " + maxAttempts + ")");
+  }
+
+  /**
+   * Called when the host is unavailable and the notification waits for it to recover. Whoever
+   * waits for the notification is released right away with a {@code PARKED} outcome; the status
+   * itself is still sent later.
+   */
+  void parked() {
+    if (parked) {
+      return;
+    }
+    parked = true;
+    String message = "Bitbucket host " + resource.getBitbucketHost() + " is unavailable, build status " +
+                     status.getState() + " for commit " + resource.getCommitId() + " will be sent once it recovers";
+    log(message);
+    result.complete(BitbucketNotificationOutcome.parked(message));
+  }
+
+  /**
+   * Called when a status of a build in progress waited too long behind a backlog. It is not sent
+   * any more, a newer status for the build will be.
+   */
+  void dropped() {
+    dropped("it waited too long behind the backlog of Bitbucket host " + resource.getBitbucketHost());
+  }
+
+  void dropped(String reason) {
+    String message = "Build status " + status.getState() + " for commit " + resource.getCommitId() +
+                     " was not sent, " + reason;
+    log(message);
+    result.complete(BitbucketNotificationOutcome.dropped(message));
+  }
+
+  void complete(int httpStatus) {
+    BitbucketBuildStatus status = this.status;
+    log("Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " to BitBucket is done!");
+    log("Sent build status with http status code:" + httpStatus);
+    result.complete(BitbucketNotificationOutcome.sent(httpStatus));
+  }
+
+  /**
+   * Called when Bitbucket answered with an error that is not retried (any more).
+   */
+  void rejected(int httpStatus, String reason) {
+    BitbucketBuildStatus status = this.status;
+    String message = "Bitbucket answered with http status " + httpStatus + " " + reason;
+    log("Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " to BitBucket failed: " + message);
+    result.complete(BitbucketNotificationOutcome.rejected(httpStatus, message));
+  }
+
+  /**
+   * Called when Bitbucket could not be reached and the status is not retried (any more).
+   */
+  void gaveUp(IOException cause) {
+    BitbucketBuildStatus status = this.status;
+    logger.log(Level.INFO, "Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+                           " failed", cause);
+    log("Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " to BitBucket failed: " + cause.getMessage());
+    result.complete(BitbucketNotificationOutcome.failed(String.valueOf(cause.getMessage())));
+  }
+
+  /**
+   * Called when the status could not even be sent, e.g. because there are no credentials for it.
+   */
+  void fail(Throwable cause) {
+    BitbucketBuildStatus status = this.status;
+    logger.log(Level.INFO, "Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+                           " failed", cause);
+    log("Sending build status " + status.getState() + " for commit " + resource.getCommitId() +
+        " to BitBucket failed: " + cause.getMessage());
+    result.completeExceptionally(cause);
+  }
+
+  /**
+   * Reports to the build log while it is written, to the Jenkins log once the build finished or
+   * its log was closed.
+   */
+  private void log(String message) {
+    TaskListener listener = this.listener;
+    Run<?, ?> build = this.build;
+    if (listener != null && (build == null || build.isLogUpdated())) {
+      PrintStream out = listener.getLogger();
+      out.println(message);
+      if (!out.checkError()) {
+        return;
+      }
+    }
+    logger.info(message);
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import com.codahale.metrics.Gauge;
+import org.jenkinsci.plugins.bitbucket.http.AdaptiveConcurrencyLimit;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Isolates the notifications of one Bitbucket host: they have their own queue and their own limit
+ * of statuses sent at the same time, so a slow host ties up its own workers only and cannot fill
+ * the queue of the others. The limit adapts to the latency of the host, up to the configured
+ * number of workers.
+ * <p>
+ * Not thread safe, guarded by the lock of the {@link BitbucketNotificationService}, which also
+ * guards the reads of its gauges.
+ */
+final class BitbucketNotificationBulkhead {
+  private final String host;
+  private final Object lock;
+  private final BitbucketNotificationQueue queue;
+  private volatile AdaptiveConcurrencyLimit limit;
+  private int active;
+
+  BitbucketNotificationBulkhead(String host, Object lock, int queueCapacity, long maxDeferralSeconds,
+                                int maxConcurrency) {
+    this.host = host;
+    this.lock = lock;
+    this.queue = new BitbucketNotificationQueue(queueCapacity, maxDeferralSeconds);
+    this.limit = new AdaptiveConcurrencyLimit(host, maxConcurrency);
+    gauge("bulkhead.queued", () -> queue.size());
+    gauge("bulkhead.deferred", () -> queue.deferredSize());
+    gauge("bulkhead.active", () -> active);
+    gauge("bulkhead.max-concurrency", () -> limit.getMaxLimit());
+    gauge("bulkhead.saturation", () -> (double) active / limit.getLimit());
+    gauge("concurrency-limit", () -> limit.getLimit());
+    gauge("concurrency-limit.baseline-latency-ms", () -> limit.getBaselineMillis());
+  }
+
+  String getHost() {
+    return host;
+  }
+
+  void reconfigure(int queueCapacity, long maxDeferralSeconds, int maxConcurrency) {
+    queue.reconfigure(queueCapacity, maxDeferralSeconds);
+    if (maxConcurrency != limit.getMaxLimit()) {
+      this.limit = new AdaptiveConcurrencyLimit(host, maxConcurrency);
+    }
+  }
+
+  /**
+   * Feeds the outcome of a request to the host into its concurrency limit. May be called without
+   * holding the lock.
+   *
+   * @see AdaptiveConcurrencyLimit#onSample
+   */
+  void onSample(long startNanos, long latencyNanos, boolean overloaded) {
+    limit.onSample(startNanos, latencyNanos, overloaded);
+  }
+
+  /**
+   * @see BitbucketNotificationQueue#offer
+   */
+  boolean offer(BitbucketNotification notification, List<BitbucketNotification> dropped) {
+    notification.queued();
+    int before = dropped.size();
+    boolean queued = queue.offer(notification, dropped);
+    markDropped(dropped.size() - before);
+    if (!queued) {
+      BitbucketNotificationMetrics.meter(host, "bulkhead.rejected").mark();
+    }
+    return queued;
+  }
+
+  void requeue(BitbucketNotification notification) {
+    notification.queued();
+    queue.requeue(notification);
+  }
+
+  void update(BitbucketNotification notification, Runnable change, List<BitbucketNotification> dropped) {
+    int before = dropped.size();
+    queue.update(notification, change, dropped);
+    markDropped(dropped.size() - before);
+  }
+
+  /**
+   * Takes the notification the calling worker sends next.
+   *
+   * @return null if the queue is empty or there are more active workers than the limit allows
+   * now, the calling worker stops then
+   */
+  BitbucketNotification poll(List<BitbucketNotification> dropped) {
+    int before = dropped.size();
+    BitbucketNotification next = active > limit.getLimit() ? null : queue.poll(dropped);
+    markDropped(dropped.size() - before);
+    if (next != null) {
+      BitbucketNotificationMetrics.queueWait(host).update(System.nanoTime() - next.getQueuedAt(),
+        TimeUnit.NANOSECONDS);
+    }
+    return next;
+  }
+
+  private void markDropped(int count) {
+    if (count > 0) {
+      BitbucketNotificationMetrics.meter(host, "bulkhead.dropped").mark(count);
+    }
+  }
+
+  boolean hasQueued() {
+    return queue.size() > 0;
+  }
+
+  /**
+   * @return true if one more worker may send statuses to the host, which then counts as active
+   * until {@link #workerStopped()}
+   */
+  boolean tryStartWorker() {
+    if (active >= limit.getLimit()) {
+      return false;
+    }
+    active++;
+    return true;
+  }
+
+  void workerStopped() {
+    active--;
+  }
+
+  private void gauge(String metric, Gauge<?> value) {
+    BitbucketNotificationMetrics.gauge(host, metric, () -> {
+      synchronized (lock) {
+        return value.getValue();
+      }
+    });
+  }
+}
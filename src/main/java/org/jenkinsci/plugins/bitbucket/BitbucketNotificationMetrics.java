@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Names and registers the metrics of the notification path. Metrics of a Bitbucket host are named
+ * {@code bitbucket-build-status-notifier.<host>.<metric>}.
+ */
+final class BitbucketNotificationMetrics {
+  private static final String PREFIX = "bitbucket-build-status-notifier";
+
+  private BitbucketNotificationMetrics() {
+  }
+
+  static String name(String bitbucketHost, String metric) {
+    return MetricRegistry.name(PREFIX, bitbucketHost, metric);
+  }
+
+  /**
+   * Time statuses for the host waited for a token of its rate limiter.
+   */
+  static Timer rateLimiterWait(String bitbucketHost) {
+    return Metrics.metricRegistry().timer(name(bitbucketHost, "rate-limiter.wait"));
+  }
+
+  /**
+   * Time statuses for the host waited in its bulkhead for a worker.
+   */
+  static Timer queueWait(String bitbucketHost) {
+    return Metrics.metricRegistry().timer(name(bitbucketHost, "bulkhead.queue-wait"));
+  }
+
+  static Meter meter(String bitbucketHost, String metric) {
+    return Metrics.metricRegistry().meter(name(bitbucketHost, metric));
+  }
+
+  /**
+   * Registers the gauge unless the host already has one of that name. Gauges look their value up
+   * on every read, so they stay valid when the component they report on is replaced.
+   */
+  static void gauge(String bitbucketHost, String metric, Gauge<?> gauge) {
+    MetricRegistry registry = Metrics.metricRegistry();
+    String name = name(bitbucketHost, metric);
+    Metric existing = registry.getMetrics().get(name);
+    if (existing == null) {
+      try {
+        registry.register(name, gauge);
+      }
+      catch (IllegalArgumentException e) {
+        // registered concurrently
+      }
+    }
+  }
+}
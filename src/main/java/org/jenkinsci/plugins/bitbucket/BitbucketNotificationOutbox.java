@@ -0,0 +1,461 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the build statuses not yet delivered, so that they survive a restart of
+ * the controller.
+ * <p>
+ * Every record is written as {@code length, crc32, payload}; a torn or corrupt record ends the
+ * journal when it is read. Appending only queues the record: a single writer thread writes
+ * everything queued since its last run and syncs it to disk once (group commit), so builds never
+ * wait for the disk. At startup the journal is replayed, keeping the latest pending status per
+ * host, commit and key, and started afresh; it is compacted the same way whenever it grows.
+ */
+public final class BitbucketNotificationOutbox {
+  private static final Logger logger = Logger.getLogger(BitbucketNotificationOutbox.class.getName());
+
+  private static final String JOURNAL_DIRECTORY = "bitbucket-build-status-notifier";
+  private static final String JOURNAL_FILE = "outbox.journal";
+  private static final long COMPACT_THRESHOLD_BYTES = 1024 * 1024;
+
+  private static final byte PENDING = 1;
+  private static final byte DONE = 2;
+
+  private static final BitbucketNotificationOutbox INSTANCE = new BitbucketNotificationOutbox();
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final Queue<byte[]> queued = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(
+    new NamingThreadFactory(new DaemonThreadFactory(), "Bitbucket notification outbox"));
+
+  // only touched by the writer thread, or before it was started
+  private final Map<String, Entry> live = new LinkedHashMap<String, Entry>();
+  private File journal;
+  private FileChannel channel;
+  private long compactThreshold = COMPACT_THRESHOLD_BYTES;
+
+  private volatile boolean open;
+
+  // only used directly by tests, everything else goes through get()
+  BitbucketNotificationOutbox() {
+  }
+
+  static BitbucketNotificationOutbox get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Journals the current status of the notification and remembers the record's sequence number in it.
+   * A status that cannot be journaled is still delivered, but an older one journaled for the same key
+   * is marked done so that it is not replayed in its place.
+   */
+  void appendPending(BitbucketNotification notification) {
+    if (!open) {
+      return;
+    }
+    long seq = sequence.incrementAndGet();
+    byte[] payload = encode(new Entry(seq, notification.getCoalescingKey(), notification.getResource(),
+      notification.getStatus(), notification.getCredentialsId(), notification.getJobFullName()));
+    if (payload == null) {
+      appendDone(notification.getCoalescingKey(), seq);
+      return;
+    }
+    notification.setJournalSequence(seq);
+    append(payload);
+  }
+
+  /**
+   * Marks the record with the given sequence number, and any older one for the same key, as
+   * delivered or given up. A newer status journaled for the same key in the meantime stays pending.
+   */
+  void appendDone(String coalescingKey, long seq) {
+    if (!open || seq < 0) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(DONE);
+      out.writeLong(seq);
+      out.writeUTF(coalescingKey);
+      out.flush();
+      append(bytes.toByteArray());
+    }
+    catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to journal delivered Bitbucket notification", e);
+    }
+  }
+
+  private void append(byte[] payload) {
+    if (payload == null) {
+      return;
+    }
+    queued.add(payload);
+    if (flushScheduled.compareAndSet(false, true)) {
+      try {
+        writer.execute(this::flush);
+      }
+      catch (RejectedExecutionException e) {
+        // closed concurrently, the status is still delivered if the controller keeps running
+        logger.fine("Bitbucket notification outbox is closed");
+      }
+    }
+  }
+
+  private void flush() {
+    flushScheduled.set(false);
+    if (channel == null) {
+      queued.clear();
+      return;
+    }
+    try {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(batch);
+      byte[] payload;
+      while ((payload = queued.poll()) != null) {
+        apply(payload);
+        writeRecord(out, payload);
+      }
+      out.flush();
+      if (batch.size() == 0) {
+        return;
+      }
+      channel.write(ByteBuffer.wrap(batch.toByteArray()));
+      channel.force(false);
+      if (channel.size() > compactThreshold) {
+        compact();
+      }
+    }
+    catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to write Bitbucket notification outbox " + journal, e);
+    }
+  }
+
+  /**
+   * Rewrites the journal with the pending statuses only.
+   */
+  private void compact() throws IOException {
+    rewrite();
+    // do not rewrite again and again when many statuses are pending
+    compactThreshold = Math.max(COMPACT_THRESHOLD_BYTES, 2 * channel.size());
+    logger.fine("Compacted Bitbucket notification outbox to " + live.size() + " pending statuses");
+  }
+
+  /**
+   * Writes the pending statuses to a new journal that atomically replaces the current one, so that
+   * a crash at any point leaves either of them complete, and opens it for appending.
+   */
+  private void rewrite() throws IOException {
+    File compacted = new File(journal.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream data = new DataOutputStream(bytes);
+      for (Entry entry : live.values()) {
+        writeRecord(data, encode(entry));
+      }
+      data.flush();
+      out.write(ByteBuffer.wrap(bytes.toByteArray()));
+      out.force(false);
+    }
+    if (channel != null) {
+      channel.close();
+    }
+    Files.move(compacted.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.APPEND);
+  }
+
+  private void apply(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte type = in.readByte();
+    if (type == PENDING) {
+      Entry entry = decode(payload);
+      live.put(entry.coalescingKey, entry);
+    }
+    else if (type == DONE) {
+      long seq = in.readLong();
+      String coalescingKey = in.readUTF();
+      Entry entry = live.get(coalescingKey);
+      if (entry != null && entry.seq <= seq) {
+        live.remove(coalescingKey);
+      }
+    }
+  }
+
+  /**
+   * Reads the journal left by the previous run, compacts it and returns the statuses that were
+   * still pending. They stay journaled until they are resubmitted, which journals them again
+   * under a new sequence number, and delivered.
+   */
+  synchronized Collection<Entry> open(File directory) throws IOException {
+    if (open) {
+      return new ArrayList<Entry>();
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    journal = new File(directory, JOURNAL_FILE);
+    if (journal.exists()) {
+      read(Files.readAllBytes(journal.toPath()));
+    }
+    long maxSeq = 0;
+    for (Entry entry : live.values()) {
+      maxSeq = Math.max(maxSeq, entry.seq);
+    }
+    sequence.set(maxSeq);
+    List<Entry> replay = new ArrayList<Entry>(live.values());
+    rewrite();
+    open = true;
+    return replay;
+  }
+
+  private void read(byte[] bytes) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int records = 0;
+    try {
+      while (in.available() >= 12) {
+        int length = in.readInt();
+        long checksum = in.readLong();
+        if (length <= 0 || length > in.available()) {
+          logger.warning("Bitbucket notification outbox ends with a torn record after " + records + " records");
+          return;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (checksum(payload) != checksum) {
+          logger.warning("Bitbucket notification outbox has a corrupt record after " + records + " records");
+          return;
+        }
+        apply(payload);
+        records++;
+      }
+    }
+    catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to read Bitbucket notification outbox " + journal, e);
+    }
+  }
+
+  synchronized void close() {
+    if (!open) {
+      return;
+    }
+    open = false;
+    writer.execute(() -> {
+      flush();
+      try {
+        channel.close();
+      }
+      catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to close Bitbucket notification outbox", e);
+      }
+      channel = null;
+    });
+    writer.shutdown();
+    try {
+      writer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+    out.writeInt(payload.length);
+    out.writeLong(checksum(payload));
+    out.write(payload);
+  }
+
+  private static long checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    return crc.getValue();
+  }
+
+  private static byte[] encode(Entry entry) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(PENDING);
+      out.writeLong(entry.seq);
+      out.writeUTF(entry.coalescingKey);
+      writeNullable(out, entry.resource.getBitbucketHost());
+      writeNullable(out, entry.resource.getOwner());
+      writeNullable(out, entry.resource.getRepoSlug());
+      writeNullable(out, entry.resource.getCommitId());
+      writeNullable(out, entry.status.getState());
+      writeNullable(out, entry.status.getKey());
+      writeNullable(out, entry.status.getUrl());
+      writeNullable(out, entry.status.getName());
+      writeNullable(out, entry.status.getDescription());
+      writeNullable(out, entry.credentialsId);
+      writeNullable(out, entry.jobFullName);
+      out.flush();
+      return bytes.toByteArray();
+    }
+    catch (IOException e) {
+      // e.g. a description longer than 64k
+      logger.log(Level.WARNING, "Unable to journal Bitbucket notification " + entry.coalescingKey, e);
+      return null;
+    }
+  }
+
+  private static Entry decode(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    in.readByte();
+    long seq = in.readLong();
+    String coalescingKey = in.readUTF();
+    String host = readNullable(in);
+    String owner = readNullable(in);
+    String repoSlug = readNullable(in);
+    String commitId = readNullable(in);
+    BitbucketBuildStatusResource resource = new BitbucketBuildStatusResource(owner, repoSlug, commitId, host);
+    BitbucketBuildStatus status = new BitbucketBuildStatus(readNullable(in), readNullable(in), readNullable(in),
+      readNullable(in), readNullable(in));
+    String credentialsId = readNullable(in);
+    String jobFullName = readNullable(in);
+    return new Entry(seq, coalescingKey, resource, status, credentialsId, jobFullName);
+  }
+
+  private static void writeNullable(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Replays the statuses that were not delivered before the last shutdown.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void replay() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (jenkins == null) {
+      return;
+    }
+    Collection<Entry> entries;
+    try {
+      entries = get().open(new File(jenkins.getRootDir(), JOURNAL_DIRECTORY));
+    }
+    catch (IOException e) {
+      logger.log(Level.WARNING, "Bitbucket notification outbox is not available, statuses will not survive a restart", e);
+      return;
+    }
+    if (!entries.isEmpty()) {
+      logger.info("Replaying " + entries.size() + " pending Bitbucket build statuses");
+    }
+    for (Entry entry : entries) {
+      // the credentials are looked up when the status is sent, not all of them may be available yet
+      BitbucketNotificationService.get().submit(
+        new BitbucketNotification(entry.credentialsId, entry.jobFullName, entry.resource, entry.status));
+    }
+  }
+
+  static final class Entry {
+    private final long seq;
+    private final String coalescingKey;
+    private final BitbucketBuildStatusResource resource;
+    private final BitbucketBuildStatus status;
+    private final String credentialsId;
+    private final String jobFullName;
+
+    private Entry(long seq, String coalescingKey, BitbucketBuildStatusResource resource,
+                  BitbucketBuildStatus status, String credentialsId, String jobFullName) {
+      this.seq = seq;
+      this.coalescingKey = coalescingKey;
+      this.resource = resource;
+      this.status = status;
+      this.credentialsId = credentialsId;
+      this.jobFullName = jobFullName;
+    }
+
+    long getSequence() {
+      return seq;
+    }
+
+    String getCoalescingKey() {
+      return coalescingKey;
+    }
+
+    BitbucketBuildStatusResource getResource() {
+      return resource;
+    }
+
+    BitbucketBuildStatus getStatus() {
+      return status;
+    }
+
+    String getCredentialsId() {
+      return credentialsId;
+    }
+
+    String getJobFullName() {
+      return jobFullName;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+/**
+ * What became of a build status handed to the {@link BitbucketNotificationService}. Only a status
+ * that could not even be sent, e.g. for lack of credentials, completes its future exceptionally.
+ */
+final class BitbucketNotificationOutcome {
+
+  enum Type {
+    /** Bitbucket accepted the status. */
+    SENT,
+    /** Bitbucket answered with an error. */
+    REJECTED,
+    /** Bitbucket could not be reached, not even after retrying. */
+    FAILED,
+    /** The host is unavailable, the status is sent once it recovers. */
+    PARKED,
+    /** The status was not sent and will not be. */
+    DROPPED
+  }
+
+  private final Type type;
+  private final int httpStatus;
+  private final String message;
+
+  private BitbucketNotificationOutcome(Type type, int httpStatus, String message) {
+    this.type = type;
+    this.httpStatus = httpStatus;
+    this.message = message;
+  }
+
+  static BitbucketNotificationOutcome sent(int httpStatus) {
+    return new BitbucketNotificationOutcome(Type.SENT, httpStatus, "http status " + httpStatus);
+  }
+
+  static BitbucketNotificationOutcome rejected(int httpStatus, String message) {
+    return new BitbucketNotificationOutcome(Type.REJECTED, httpStatus, message);
+  }
+
+  static BitbucketNotificationOutcome failed(String message) {
+    return new BitbucketNotificationOutcome(Type.FAILED, -1, message);
+  }
+
+  static BitbucketNotificationOutcome parked(String message) {
+    return new BitbucketNotificationOutcome(Type.PARKED, -1, message);
+  }
+
+  static BitbucketNotificationOutcome dropped(String message) {
+    return new BitbucketNotificationOutcome(Type.DROPPED, -1, message);
+  }
+
+  Type getType() {
+    return type;
+  }
+
+  boolean isSent() {
+    return type == Type.SENT;
+  }
+
+  /**
+   * @return the http status Bitbucket answered with, -1 if it did not answer
+   */
+  int getHttpStatus() {
+    return httpStatus;
+  }
+
+  String getMessage() {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return type + ": " + message;
+  }
+}
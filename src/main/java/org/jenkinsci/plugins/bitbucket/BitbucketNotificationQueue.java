@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The notifications waiting for a worker, terminal statuses first and the oldest first within each.
+ * <p>
+ * Once the queue is full, statuses of builds still in progress make room for terminal ones: they
+ * are deferred until the backlog went down to half the capacity, and dropped if they stayed
+ * deferred for longer than the maximum deferral, right away if that is 0. At most as many statuses as the capacity are
+ * deferred, the oldest deferred status is dropped to make room for another one. A deferred status
+ * is still merged with newer statuses for its key, a terminal status arriving for it is queued
+ * right away.
+ * <p>
+ * Not thread safe, callers guard it with their own lock.
+ */
+final class BitbucketNotificationQueue {
+  static final long DEFAULT_MAX_DEFERRAL_SECONDS = 600;
+
+  private static final Comparator<BitbucketNotification> PRIORITY = Comparator
+    .comparing((BitbucketNotification n) -> !n.isTerminal())
+    .thenComparingLong(BitbucketNotification::getSequence);
+
+  private final TreeSet<BitbucketNotification> ready = new TreeSet<BitbucketNotification>(PRIORITY);
+  // deferred statuses with the time they were deferred at, oldest first
+  private final Map<BitbucketNotification, Long> deferred = new LinkedHashMap<BitbucketNotification, Long>();
+  private final LongSupplier nanoTime;
+  private int capacity;
+  private long maxDeferralNanos;
+
+  BitbucketNotificationQueue(int capacity, long maxDeferralSeconds) {
+    this(capacity, maxDeferralSeconds, System::nanoTime);
+  }
+
+  BitbucketNotificationQueue(int capacity, long maxDeferralSeconds, LongSupplier nanoTime) {
+    this.nanoTime = nanoTime;
+    reconfigure(capacity, maxDeferralSeconds);
+  }
+
+  void reconfigure(int capacity, long maxDeferralSeconds) {
+    this.capacity = capacity;
+    this.maxDeferralNanos = TimeUnit.SECONDS.toNanos(Math.max(0, maxDeferralSeconds));
+  }
+
+  /**
+   * Queues a new notification. Deferred notifications it makes room for, and the ones that cannot be
+   * deferred at all, are handed to {@code dropped}.
+   *
+   * @return false if the queue is full of terminal statuses and the notification was not queued
+   */
+  boolean offer(BitbucketNotification notification, List<BitbucketNotification> dropped) {
+    if (ready.size() < capacity) {
+      ready.add(notification);
+      return true;
+    }
+    if (!notification.isTerminal()) {
+      defer(notification, dropped);
+      return true;
+    }
+    BitbucketNotification youngest = ready.last();
+    if (youngest.isTerminal()) {
+      return false;
+    }
+    ready.remove(youngest);
+    defer(youngest, dropped);
+    ready.add(notification);
+    return true;
+  }
+
+  /**
+   * Queues a notification that was queued before, e.g. for a retry, regardless of the capacity.
+   */
+  void requeue(BitbucketNotification notification) {
+    ready.add(notification);
+  }
+
+  /**
+   * Applies a change to the status of a notification that may be queued, keeping it in its place.
+   */
+  void update(BitbucketNotification notification, Runnable change, List<BitbucketNotification> dropped) {
+    boolean wasReady = ready.remove(notification);
+    boolean wasDeferred = !wasReady && deferred.remove(notification) != null;
+    change.run();
+    if (wasReady || wasDeferred && notification.isTerminal()) {
+      ready.add(notification);
+    }
+    else if (wasDeferred) {
+      defer(notification, dropped);
+    }
+  }
+
+  /**
+   * Takes the notification to send next. Deferred notifications are queued again once the backlog
+   * went down, the ones deferred for too long are handed to {@code dropped} instead.
+   */
+  BitbucketNotification poll(List<BitbucketNotification> dropped) {
+    long now = nanoTime.getAsLong();
+    Iterator<Map.Entry<BitbucketNotification, Long>> it = deferred.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<BitbucketNotification, Long> entry = it.next();
+      if (now - entry.getValue() > maxDeferralNanos) {
+        it.remove();
+        dropped.add(entry.getKey());
+      }
+      else if (ready.size() <= capacity / 2) {
+        it.remove();
+        ready.add(entry.getKey());
+      }
+      else {
+        // the others were deferred later
+        break;
+      }
+    }
+    return ready.pollFirst();
+  }
+
+  private void defer(BitbucketNotification notification, List<BitbucketNotification> dropped) {
+    if (maxDeferralNanos == 0) {
+      dropped.add(notification);
+      return;
+    }
+    deferred.put(notification, nanoTime.getAsLong());
+    Iterator<BitbucketNotification> oldest = deferred.keySet().iterator();
+    while (deferred.size() > Math.max(1, capacity)) {
+      dropped.add(oldest.next());
+      oldest.remove();
+    }
+  }
+
+  int size() {
+    return ready.size();
+  }
+
+  int deferredSize() {
+    return deferred.size();
+  }
+}
@@ -0,0 +1,713 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+import okhttp3.Response;
+import org.jenkinsci.plugins.bitbucket.http.BitbucketClientRegistry;
+import org.jenkinsci.plugins.bitbucket.http.CircuitBreaker;
+import org.jenkinsci.plugins.bitbucket.http.RetryPolicy;
+import org.jenkinsci.plugins.bitbucket.http.TokenBucketRateLimiter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends build statuses to Bitbucket on worker threads so that builds only hand a status over and
+ * never wait on Bitbucket unless they ask to. Statuses are journaled in the
+ * {@link BitbucketNotificationOutbox} until they were delivered.
+ * <p>
+ * Every host has its own {@link BitbucketNotificationBulkhead} with a bounded queue and a bounded
+ * number of workers, which take the terminal statuses first when they fall behind.
+ */
+public final class BitbucketNotificationService {
+  private static final Logger logger = Logger.getLogger(BitbucketNotificationService.class.getName());
+
+  static final int DEFAULT_WORKERS = 4;
+  static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  // threads and queued tasks of pipeline steps handing statuses over to the service
+  static final int STEP_THREADS = 4;
+  static final int STEP_QUEUE_CAPACITY = 1000;
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private static final BitbucketNotificationService INSTANCE = new BitbucketNotificationService();
+
+  private final ThreadPoolExecutor executor;
+  private final ThreadPoolExecutor stepExecutor;
+  private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+  // overrides of the retry policy for single hosts, replaced as a whole when reconfigured
+  private volatile Map<String, RetryPolicy> hostRetryPolicies = Collections.emptyMap();
+  private volatile boolean stopping;
+  private volatile int workers;
+  private volatile int queueCapacity;
+  private volatile long maxDeferralSeconds;
+
+  // guards pending and inFlight, which are keyed by BitbucketNotification#getCoalescingKey, and
+  // the bulkheads, which are keyed by host
+  private final Object lock = new Object();
+  private final Map<String, BitbucketNotification> pending = new HashMap<String, BitbucketNotification>();
+  private final Set<String> inFlight = new HashSet<String>();
+  private final Map<String, BitbucketNotificationBulkhead> bulkheads = new HashMap<String, BitbucketNotificationBulkhead>();
+  // notifications waiting for their host's circuit breaker to permit calls again, by host, oldest
+  // first and at most the queue capacity of them per host
+  private final Map<String, List<BitbucketNotification>> parked = new HashMap<String, List<BitbucketNotification>>();
+  private final Set<String> wakeUpScheduled = new HashSet<String>();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+  private volatile Function<String, CircuitBreaker> circuitBreakerFactory = host -> new CircuitBreaker(host,
+    CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD, CircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD,
+    CircuitBreaker.DEFAULT_SLOW_CALL_SECONDS, CircuitBreaker.DEFAULT_OPEN_SECONDS);
+  private int failureRateThreshold = CircuitBreaker.DEFAULT_FAILURE_RATE_THRESHOLD;
+  private int slowCallRateThreshold = CircuitBreaker.DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+  private long slowCallSeconds = CircuitBreaker.DEFAULT_SLOW_CALL_SECONDS;
+  private long openSeconds = CircuitBreaker.DEFAULT_OPEN_SECONDS;
+
+  private final ConcurrentMap<String, TokenBucketRateLimiter> rateLimiters = new ConcurrentHashMap<String, TokenBucketRateLimiter>();
+  private volatile Function<String, TokenBucketRateLimiter> rateLimiterFactory = host -> new TokenBucketRateLimiter(
+    TokenBucketRateLimiter.DEFAULT_PERMITS_PER_SECOND, TokenBucketRateLimiter.DEFAULT_BURST);
+  private int permitsPerSecond = TokenBucketRateLimiter.DEFAULT_PERMITS_PER_SECOND;
+  private int burst = TokenBucketRateLimiter.DEFAULT_BURST;
+
+  private BitbucketNotificationService() {
+    this.workers = DEFAULT_WORKERS;
+    this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    this.maxDeferralSeconds = BitbucketNotificationQueue.DEFAULT_MAX_DEFERRAL_SECONDS;
+    this.executor = createExecutor();
+    this.stepExecutor = createStepExecutor();
+  }
+
+  static BitbucketNotificationService get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param workers            statuses sent to a host at the same time
+   * @param queueCapacity      statuses waiting for a host
+   * @param maxDeferralSeconds how long a status of a build in progress may be held back while the
+   *                           queue is full before it is dropped, 0 to drop it right away
+   */
+  synchronized void reconfigure(int workers, int queueCapacity, long maxDeferralSeconds) {
+    int newWorkers = workers > 0 ? workers : DEFAULT_WORKERS;
+    int newQueueCapacity = queueCapacity > 0 ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+    if (newWorkers == this.workers && newQueueCapacity == this.queueCapacity &&
+        maxDeferralSeconds == this.maxDeferralSeconds) {
+      return;
+    }
+    logger.info("Reconfiguring Bitbucket notification bulkheads: workers=" + newWorkers +
+                ", queueCapacity=" + newQueueCapacity + ", maxDeferralSeconds=" + maxDeferralSeconds);
+    synchronized (lock) {
+      this.workers = newWorkers;
+      this.queueCapacity = newQueueCapacity;
+      this.maxDeferralSeconds = maxDeferralSeconds;
+      for (BitbucketNotificationBulkhead bulkhead : bulkheads.values()) {
+        // workers check the limit before taking their next status, so the ones above a lowered
+        // limit stop once they are done with their current status
+        bulkhead.reconfigure(newQueueCapacity, maxDeferralSeconds, newWorkers);
+      }
+    }
+  }
+
+  /**
+   * @param retryPolicy       policy of the hosts without one of their own
+   * @param hostRetryPolicies policies of single hosts, by host
+   */
+  void setRetryPolicies(RetryPolicy retryPolicy, Map<String, RetryPolicy> hostRetryPolicies) {
+    this.hostRetryPolicies = Collections.unmodifiableMap(new HashMap<String, RetryPolicy>(hostRetryPolicies));
+    this.retryPolicy = retryPolicy;
+  }
+
+  private RetryPolicy retryPolicyFor(String bitbucketHost) {
+    RetryPolicy policy = hostRetryPolicies.get(bitbucketHost);
+    return policy != null ? policy : retryPolicy;
+  }
+
+  synchronized void reconfigureCircuitBreakers(int failureRateThreshold, int slowCallRateThreshold,
+                                               long slowCallSeconds, long openSeconds) {
+    if (failureRateThreshold == this.failureRateThreshold && slowCallRateThreshold == this.slowCallRateThreshold &&
+        slowCallSeconds == this.slowCallSeconds && openSeconds == this.openSeconds) {
+      return;
+    }
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.slowCallSeconds = slowCallSeconds;
+    this.openSeconds = openSeconds;
+    this.circuitBreakerFactory = host -> new CircuitBreaker(host, failureRateThreshold, slowCallRateThreshold,
+      slowCallSeconds, openSeconds);
+    // hosts start over with closed breakers using the new settings
+    circuitBreakers.clear();
+  }
+
+  CircuitBreaker.State getCircuitBreakerState(String bitbucketHost) {
+    CircuitBreaker breaker = circuitBreakers.get(bitbucketHost);
+    return breaker != null ? breaker.getState() : CircuitBreaker.State.CLOSED;
+  }
+
+  private CircuitBreaker circuitBreakerFor(String bitbucketHost) {
+    return circuitBreakers.computeIfAbsent(bitbucketHost, circuitBreakerFactory);
+  }
+
+  synchronized void reconfigureRateLimiters(int permitsPerSecond, int burst) {
+    if (permitsPerSecond == this.permitsPerSecond && burst == this.burst) {
+      return;
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.rateLimiterFactory = host -> new TokenBucketRateLimiter(permitsPerSecond, burst);
+    // hosts start over with full buckets
+    rateLimiters.clear();
+  }
+
+  private TokenBucketRateLimiter rateLimiterFor(String bitbucketHost) {
+    TokenBucketRateLimiter limiter = rateLimiters.get(bitbucketHost);
+    if (limiter == null) {
+      limiter = rateLimiters.computeIfAbsent(bitbucketHost, rateLimiterFactory);
+      BitbucketNotificationMetrics.gauge(bitbucketHost, "rate-limiter.available-tokens",
+        () -> rateLimiterFor(bitbucketHost).getAvailableTokens());
+    }
+    return limiter;
+  }
+
+  /**
+   * Queues the notification and returns immediately. The returned future completes with the
+   * outcome once Bitbucket answered or the status was parked or dropped, after the outcome was
+   * reported to the build log.
+   * <p>
+   * A notification still waiting for the same host, commit and key is superseded by the new one
+   * instead of being sent as well. A status is never sent while an older one for the same key is
+   * still in flight, so an older status cannot overwrite a newer one.
+   */
+  CompletableFuture<BitbucketNotificationOutcome> submit(final BitbucketNotification notification) {
+    BitbucketNotificationOutbox.get().appendPending(notification);
+    String key = notification.getCoalescingKey();
+    List<BitbucketNotification> dropped = new ArrayList<BitbucketNotification>();
+    // merged into the queued status for the key, or queued once the one in flight is done
+    boolean held;
+    synchronized (lock) {
+      final BitbucketNotification queued = pending.get(key);
+      if (queued != null) {
+        bulkheadFor(queued).update(queued, () -> queued.supersede(notification), dropped);
+        forgetDropped(dropped);
+        coalesced.incrementAndGet();
+        held = true;
+      }
+      else {
+        pending.put(key, notification);
+        held = inFlight.contains(key);
+      }
+    }
+    completeDropped(dropped);
+    if (held) {
+      return notification.getResult();
+    }
+    if (!enqueue(notification, true)) {
+      // the caller learns from the outcome, it is not made to send the status itself
+      String host = notification.getResource().getBitbucketHost();
+      logger.warning("Bitbucket notification queue for " + host + " is full, dropping a build status");
+      synchronized (lock) {
+        pending.remove(key, notification);
+      }
+      BitbucketNotificationOutbox.get().appendDone(key, notification.getJournalSequence());
+      notification.dropped("the queue of Bitbucket host " + host + " is full");
+    }
+    return notification.getResult();
+  }
+
+  /**
+   * Runs the part of a pipeline step that blocks, like resolving the repositories of the build and
+   * looking up credentials, on a thread of the service instead of the CPS thread or the shared
+   * Jenkins timer.
+   *
+   * @throws RejectedExecutionException if too many steps are waiting for a thread already
+   */
+  void execute(Runnable task) {
+    stepExecutor.execute(task);
+  }
+
+  long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Completes once all the notifications completed, exceptionally if any of them could not be sent at all.
+   */
+  static CompletableFuture<Void> allOf(final List<CompletableFuture<BitbucketNotificationOutcome>> results) {
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+      .handle((ignored, error) -> {
+        if (error != null) {
+          throw new CompletionException(aggregateFailures(results));
+        }
+        return null;
+      });
+  }
+
+  /**
+   * @return the failure of the only notification that failed, or one failure counting all of them
+   */
+  private static Throwable aggregateFailures(List<CompletableFuture<BitbucketNotificationOutcome>> results) {
+    List<Throwable> failures = new ArrayList<Throwable>();
+    for (CompletableFuture<BitbucketNotificationOutcome> result : results) {
+      try {
+        result.join();
+      }
+      catch (CompletionException | CancellationException e) {
+        failures.add(unwrap(e));
+      }
+    }
+    if (failures.size() == 1) {
+      return failures.get(0);
+    }
+    IOException failure = new IOException(failures.size() + " of " + results.size() +
+                                          " build statuses could not be sent, the first one: " +
+                                          failures.get(0).getMessage(), failures.get(0));
+    for (Throwable other : failures.subList(1, failures.size())) {
+      failure.addSuppressed(other);
+    }
+    return failure;
+  }
+
+  /**
+   * @return the failure a dependent stage of a notification future completed with
+   */
+  static Throwable unwrap(Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) {
+      return error.getCause();
+    }
+    return error;
+  }
+
+  /**
+   * Blocks until the given notifications were delivered, rethrowing the failure of the first one that failed.
+   */
+  static void await(CompletableFuture<?> result) throws Exception {
+    try {
+      result.get();
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Queues the notification in the bulkhead of its host and makes sure a worker is there to take it.
+   *
+   * @param bounded false for notifications that were queued before and have to be queued again,
+   *                regardless of the capacity
+   * @return false if the queue is full and the notification was not queued
+   */
+  private boolean enqueue(BitbucketNotification notification, boolean bounded) {
+    BitbucketNotificationBulkhead bulkhead;
+    boolean startWorker;
+    List<BitbucketNotification> dropped = new ArrayList<BitbucketNotification>();
+    synchronized (lock) {
+      bulkhead = bulkheadFor(notification);
+      if (bounded) {
+        if (!bulkhead.offer(notification, dropped)) {
+          return false;
+        }
+        forgetDropped(dropped);
+      }
+      else {
+        bulkhead.requeue(notification);
+      }
+      startWorker = bulkhead.tryStartWorker();
+    }
+    completeDropped(dropped);
+    if (startWorker) {
+      startWorker(bulkhead);
+    }
+    return true;
+  }
+
+  // must hold lock
+  private void forgetDropped(List<BitbucketNotification> dropped) {
+    for (BitbucketNotification notification : dropped) {
+      pending.remove(notification.getCoalescingKey(), notification);
+    }
+  }
+
+  /**
+   * Reports the notifications a bulkhead dropped and takes them out of the outbox. Called once they
+   * were forgotten, without holding the lock.
+   */
+  private void completeDropped(List<BitbucketNotification> dropped) {
+    for (BitbucketNotification notification : dropped) {
+      notification.dropped();
+      BitbucketNotificationOutbox.get().appendDone(notification.getCoalescingKey(),
+        notification.getJournalSequence());
+    }
+  }
+
+  // must hold lock
+  private BitbucketNotificationBulkhead bulkheadFor(BitbucketNotification notification) {
+    return bulkheads.computeIfAbsent(notification.getResource().getBitbucketHost(),
+      host -> new BitbucketNotificationBulkhead(host, lock, queueCapacity, maxDeferralSeconds, workers));
+  }
+
+  private void startWorker(final BitbucketNotificationBulkhead bulkhead) {
+    try {
+      executor.execute(() -> work(bulkhead));
+    }
+    catch (RejectedExecutionException e) {
+      // shutting down, the queued statuses stay in the outbox
+      synchronized (lock) {
+        bulkhead.workerStopped();
+      }
+    }
+  }
+
+  private void work(BitbucketNotificationBulkhead bulkhead) {
+    while (true) {
+      BitbucketNotification next = null;
+      boolean startWorker = false;
+      List<BitbucketNotification> dropped = new ArrayList<BitbucketNotification>();
+      synchronized (lock) {
+        if (!stopping) {
+          next = bulkhead.poll(dropped);
+        }
+        if (next == null) {
+          bulkhead.workerStopped();
+        }
+        else {
+          // the concurrency limit may have grown since the workers were started
+          startWorker = bulkhead.hasQueued() && bulkhead.tryStartWorker();
+        }
+        forgetDropped(dropped);
+      }
+      completeDropped(dropped);
+      if (startWorker) {
+        startWorker(bulkhead);
+      }
+      if (next == null) {
+        return;
+      }
+      try {
+        deliver(next);
+      }
+      catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unexpected failure sending a build status to " + bulkhead.getHost(), e);
+      }
+    }
+  }
+
+  private void requeue(BitbucketNotification notification) {
+    enqueue(notification, false);
+  }
+
+  private void deliver(final BitbucketNotification notification) {
+    String host = notification.getResource().getBitbucketHost();
+    if (notification.takeReservedToken()) {
+      send(notification);
+      return;
+    }
+    long waitNanos = rateLimiterFor(host).reserve();
+    BitbucketNotificationMetrics.rateLimiterWait(host).update(waitNanos, TimeUnit.NANOSECONDS);
+    if (waitNanos > 0) {
+      // the token is taken, the status stays pending and is queued again when its turn comes
+      notification.tokenReserved();
+      Timer.get().schedule(() -> requeue(notification), waitNanos, TimeUnit.NANOSECONDS);
+      return;
+    }
+    send(notification);
+  }
+
+  private void send(BitbucketNotification notification) {
+    String key = notification.getCoalescingKey();
+    String host = notification.getResource().getBitbucketHost();
+    CircuitBreaker breaker = circuitBreakerFor(host);
+    BitbucketNotificationBulkhead bulkhead;
+    boolean permitted;
+    BitbucketNotification dropped = null;
+    synchronized (lock) {
+      bulkhead = bulkheadFor(notification);
+      permitted = breaker.tryAcquirePermission();
+      if (permitted) {
+        pending.remove(key);
+        inFlight.add(key);
+      }
+      else {
+        // stays pending, so newer statuses for the key are still merged into it
+        List<BitbucketNotification> waiting = parked.computeIfAbsent(host, h -> new ArrayList<BitbucketNotification>());
+        waiting.add(notification);
+        if (waiting.size() > queueCapacity) {
+          dropped = removeOldestParked(waiting);
+          pending.remove(dropped.getCoalescingKey(), dropped);
+        }
+      }
+    }
+    if (!permitted) {
+      if (dropped != notification) {
+        notification.parked();
+      }
+      if (dropped != null) {
+        dropped.dropped("too many build statuses are waiting for Bitbucket host " + host + " to recover");
+        BitbucketNotificationOutbox.get().appendDone(dropped.getCoalescingKey(), dropped.getJournalSequence());
+      }
+      releaseParked(host, breaker);
+      return;
+    }
+
+    // the status sent below is the one journaled under this sequence number
+    long journalSequence = notification.getJournalSequence();
+    RetryPolicy policy = retryPolicyFor(host);
+    long retryDelay = -1;
+    String failure = null;
+    notification.attempted();
+    long start = System.nanoTime();
+    try {
+      Response response = BitbucketBuildStatusHelper.sendBuildStatusNotification(
+        notification.getCredentials(),
+        notification.getResource(),
+        notification.getStatus());
+      int httpStatus = response.code();
+      long latency = System.nanoTime() - start;
+      if (RetryPolicy.isRetryable(httpStatus)) {
+        breaker.onFailure(latency);
+      }
+      else {
+        // any other answer, even an error, shows that the host is up
+        breaker.onSuccess(latency);
+      }
+      // server errors and throttling both mean the host takes fewer concurrent requests
+      bulkhead.onSample(start, latency, httpStatus >= 500 || httpStatus == 429);
+      if (RetryPolicy.isSuccessful(httpStatus)) {
+        notification.complete(httpStatus);
+      }
+      else if (RetryPolicy.isRetryable(httpStatus) && policy.canRetry(notification.getAttempts())) {
+        failure = "http status " + httpStatus;
+        retryDelay = policy.delayMillis(notification.getAttempts(), httpStatus, response.header("Retry-After"));
+      }
+      else {
+        notification.rejected(httpStatus, response.message());
+      }
+    }
+    catch (IOException e) {
+      long latency = System.nanoTime() - start;
+      breaker.onFailure(latency);
+      if (e instanceof InterruptedIOException) {
+        // timed out, a host that could not be connected to says nothing about its load
+        bulkhead.onSample(start, latency, true);
+      }
+      if (policy.canRetry(notification.getAttempts())) {
+        failure = e.getMessage();
+        retryDelay = policy.delayMillis(notification.getAttempts(), -1, null);
+      }
+      else {
+        notification.gaveUp(e);
+      }
+    }
+    catch (Exception e) {
+      // the request could not even be made
+      breaker.releasePermission();
+      notification.fail(e);
+    }
+
+    if (retryDelay < 0) {
+      // delivered or given up
+      BitbucketNotificationOutbox.get().appendDone(key, journalSequence);
+    }
+
+    BitbucketNotification next;
+    synchronized (lock) {
+      inFlight.remove(key);
+      next = pending.get(key);
+      if (retryDelay >= 0 && next == null) {
+        // newer statuses for the key are merged into this one while it waits for its retry
+        pending.put(key, notification);
+      }
+    }
+    if (retryDelay >= 0) {
+      if (next != null) {
+        notification.replaceBy(next);
+      }
+      else {
+        notification.retrying(failure, retryDelay, policy.getMaxAttempts());
+        // retries wait on the timer, not on a worker or build thread
+        Timer.get().schedule(() -> requeue(notification), retryDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (next != null) {
+      // it was accepted when it was submitted, so it is queued even if the queue filled up since
+      enqueue(next, false);
+    }
+    releaseParked(host, breaker);
+  }
+
+  /**
+   * Sends the notifications parked for the host again once its breaker closed, or schedules a
+   * wake-up for when an open breaker starts permitting probe calls. While the breaker is half
+   * open the outcome of the probes decides, probes it still permits, e.g. because one was given
+   * back without a call, are taken by parked notifications.
+   */
+  private void releaseParked(final String host, CircuitBreaker breaker) {
+    List<BitbucketNotification> released = null;
+    long wakeUpDelay = -1;
+    boolean probing = false;
+    synchronized (lock) {
+      List<BitbucketNotification> waiting = parked.get(host);
+      if (waiting == null || waiting.isEmpty()) {
+        return;
+      }
+      CircuitBreaker.State state = breaker.getState();
+      if (state == CircuitBreaker.State.CLOSED) {
+        released = parked.remove(host);
+      }
+      else if (state == CircuitBreaker.State.HALF_OPEN && breaker.getAvailableProbes() > 0) {
+        int probes = Math.min(breaker.getAvailableProbes(), waiting.size());
+        released = new ArrayList<BitbucketNotification>(waiting.subList(0, probes));
+        waiting.subList(0, probes).clear();
+        probing = true;
+      }
+      else if (state == CircuitBreaker.State.OPEN && wakeUpScheduled.add(host)) {
+        wakeUpDelay = breaker.getRemainingOpenMillis();
+      }
+    }
+    if (released != null) {
+      logger.info("Bitbucket host " + host + (probing ? " is probed" : " recovered") + ", sending " + released.size() +
+                  " parked build statuses");
+      for (BitbucketNotification notification : released) {
+        requeue(notification);
+      }
+    }
+    if (wakeUpDelay >= 0) {
+      Timer.get().schedule(() -> wakeUp(host), wakeUpDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Makes room among the parked notifications like the queue does, statuses of builds in progress go first.
+   */
+  private static BitbucketNotification removeOldestParked(List<BitbucketNotification> waiting) {
+    for (Iterator<BitbucketNotification> it = waiting.iterator(); it.hasNext(); ) {
+      BitbucketNotification notification = it.next();
+      if (!notification.isTerminal()) {
+        it.remove();
+        return notification;
+      }
+    }
+    return waiting.remove(0);
+  }
+
+  private void wakeUp(String host) {
+    List<BitbucketNotification> released;
+    synchronized (lock) {
+      wakeUpScheduled.remove(host);
+      released = parked.remove(host);
+    }
+    if (released != null) {
+      // the breaker lets the first few through as probes, the others are parked again
+      for (BitbucketNotification notification : released) {
+        requeue(notification);
+      }
+    }
+  }
+
+  synchronized void shutdown() {
+    // workers finish the statuses they are sending, the queued ones stay in the outbox
+    stopping = true;
+    // steps that did not hand their statuses over yet do so when their build resumes
+    stepExecutor.shutdown();
+    ThreadPoolExecutor current = this.executor;
+    current.shutdown();
+    try {
+      if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warning("Bitbucket notifications still being sent at shutdown: " + current.getActiveCount());
+        current.shutdownNow();
+      }
+    }
+    catch (InterruptedException e) {
+      logger.log(Level.WARNING, "Interrupted while waiting for Bitbucket notifications", e);
+      current.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    // threads are only started on behalf of a bulkhead, so their number is bounded by the bulkheads
+    return new ThreadPoolExecutor(
+      0,
+      Integer.MAX_VALUE,
+      60L,
+      TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(),
+      new NamingThreadFactory(new DaemonThreadFactory(), "Bitbucket build status notifier"));
+  }
+
+  private static ThreadPoolExecutor createStepExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      STEP_THREADS,
+      STEP_THREADS,
+      60L,
+      TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(STEP_QUEUE_CAPACITY),
+      new NamingThreadFactory(new DaemonThreadFactory(), "Bitbucket build status step"),
+      (task, rejectedBy) -> {
+        throw new RejectedExecutionException("Too many pipeline steps are waiting to hand a build status over to " +
+                                             "the Bitbucket notification service");
+      });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Terminator
+  public static void shutdownService() {
+    get().shutdown();
+    // whatever is still pending stays in the outbox and is replayed on the next start
+    BitbucketNotificationOutbox.get().close();
+    BitbucketClientRegistry.get().shutdown();
+  }
+}
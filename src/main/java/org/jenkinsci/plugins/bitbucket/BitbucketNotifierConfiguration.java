@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.bitbucket.validator.BitbucketHostValidator;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the global configuration of the plugin, shared by the notifier and the
+ * pipeline steps. The snapshot is replaced as a whole whenever the configuration is loaded or
+ * saved, so reading it needs neither locking nor I/O. The first configured Bitbucket instance is
+ * the default one.
+ */
+final class BitbucketNotifierConfiguration {
+
+  private static volatile BitbucketNotifierConfiguration current;
+
+  private final List<BitbucketInstance> instances;
+  private final Map<String, BitbucketInstance> byUrl = new HashMap<String, BitbucketInstance>();
+  private final BitbucketHostValidator hostValidator;
+
+  BitbucketNotifierConfiguration(List<BitbucketInstance> instances) {
+    this.instances = Collections.unmodifiableList(new ArrayList<BitbucketInstance>(instances));
+    List<String> urls = new ArrayList<String>();
+    for (BitbucketInstance instance : this.instances) {
+      if (instance.getUrl() != null && !instance.getUrl().isEmpty()) {
+        byUrl.putIfAbsent(instance.getUrl(), instance);
+        urls.add(instance.getUrl());
+      }
+    }
+    this.hostValidator = new BitbucketHostValidator(urls);
+  }
+
+  static BitbucketNotifierConfiguration get() {
+    BitbucketNotifierConfiguration configuration = current;
+    if (configuration == null) {
+      // the descriptor publishes the loaded configuration when it is created
+      Jenkins.get().getDescriptorByType(BitbucketBuildStatusNotifier.DescriptorImpl.class);
+      configuration = current;
+    }
+    return configuration != null ? configuration :
+           new BitbucketNotifierConfiguration(Collections.<BitbucketInstance>emptyList());
+  }
+
+  static void publish(BitbucketNotifierConfiguration configuration) {
+    current = configuration;
+  }
+
+  List<BitbucketInstance> getInstances() {
+    return instances;
+  }
+
+  /**
+   * @return the instance statuses without a repository of their own are sent to, null if none is configured
+   */
+  private BitbucketInstance getDefaultInstance() {
+    return instances.isEmpty() ? null : instances.get(0);
+  }
+
+  String getGlobalCredentialsId() {
+    BitbucketInstance instance = getDefaultInstance();
+    return instance != null ? instance.getCredentialsId() : null;
+  }
+
+  String getBitbucketHost() {
+    BitbucketInstance instance = getDefaultInstance();
+    return instance != null ? instance.getUrl() : null;
+  }
+
+  /**
+   * @return the credentials configured for the instance with the given url, null if it has none.
+   * The credentials of another instance are never used, they would be sent to the wrong host.
+   */
+  String getCredentialsId(String bitbucketHost) {
+    BitbucketInstance instance = bitbucketHost != null ? byUrl.get(bitbucketHost) : null;
+    return instance != null ? instance.getCredentialsId() : null;
+  }
+
+  /**
+   * Finds the instance a status for an explicitly given commit is sent to, as such a status has no
+   * repository url to route it by.
+   *
+   * @param bitbucketHost the url of the instance or of a repository on it, null if only one instance is configured
+   * @return the url of the instance
+   */
+  String getExplicitInstance(String bitbucketHost) throws Exception {
+    if (bitbucketHost == null || bitbucketHost.trim().isEmpty()) {
+      if (byUrl.size() == 1) {
+        return byUrl.keySet().iterator().next();
+      }
+      throw new Exception(byUrl.isEmpty() ? "Bitbucket build notifier has no Bitbucket instance configured" :
+                          "Bitbucket build notifier has " + byUrl.size() + " Bitbucket instances configured, " +
+                          "give bitbucketHost to choose the one the commit is on");
+    }
+    URI uri;
+    try {
+      uri = URI.create(bitbucketHost.trim());
+    }
+    catch (IllegalArgumentException e) {
+      throw new Exception("Invalid Bitbucket host " + bitbucketHost, e);
+    }
+    String instance = hostValidator.route(uri.getHost(), uri.getPort());
+    if (instance == null) {
+      throw new Exception(hostValidator.renderError(bitbucketHost));
+    }
+    return instance;
+  }
+
+  BitbucketHostValidator getHostValidator() {
+    return hostValidator;
+  }
+
+  /**
+   * Applies the configuration whenever it is saved, also when that happens without the
+   * configuration page, e.g. from a script.
+   */
+  @Extension
+  public static class SaveListener extends SaveableListener {
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (o instanceof BitbucketBuildStatusNotifier.DescriptorImpl) {
+        ((BitbucketBuildStatusNotifier.DescriptorImpl) o).applyConfiguration();
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A small thread safe cache that drops the least recently used entry once it is full, and entries
+ * that are older than their time to live.
+ */
+final class BoundedCache<K, V> {
+  private final int maxSize;
+  private final long ttlNanos;
+  private final LinkedHashMap<K, Entry<V>> entries;
+  // guarded by entries, counts the invalidations so values computed before one are not cached
+  private long generation;
+
+  private static final class Entry<V> {
+    final V value;
+    final long createdAt = System.nanoTime();
+
+    Entry(V value) {
+      this.value = value;
+    }
+  }
+
+  BoundedCache(final int maxSize, long ttl, TimeUnit unit) {
+    this.maxSize = maxSize;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        return size() > BoundedCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached value for the key, computing it if it is missing or expired. The value is
+   * computed without holding the lock of the cache, so two threads may compute it at the same time.
+   * A value whose computation overlapped {@link #invalidateAll()} is returned but not cached.
+   */
+  V get(K key, Function<? super K, ? extends V> compute) {
+    long computedIn;
+    synchronized (entries) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.createdAt < ttlNanos) {
+        return entry.value;
+      }
+      computedIn = generation;
+    }
+    V value = compute.apply(key);
+    synchronized (entries) {
+      if (computedIn == generation) {
+        entries.put(key, new Entry<V>(value));
+      }
+    }
+    return value;
+  }
+
+  void invalidateAll() {
+    synchronized (entries) {
+      generation++;
+      entries.clear();
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the requests sent to a Bitbucket host at the same time, adapting the limit to how the host
+ * copes (additive increase, multiplicative decrease).
+ * <p>
+ * The limit grows by one per round of requests answered in about the baseline latency, which is a
+ * moving average of the latencies seen. A timeout, a server error or a latency far above the
+ * baseline halves it. Only requests started after the last decrease can decrease it again, so a
+ * single overloaded round is not punished several times.
+ * <p>
+ * Every answer moves the baseline, including the slow ones, so a host that got slower for good
+ * becomes the new normal after a few rounds and a single unusually fast answer does not make all
+ * the later ones look slow.
+ */
+public final class AdaptiveConcurrencyLimit {
+    private static final Logger logger = Logger.getLogger(AdaptiveConcurrencyLimit.class.getName());
+
+    static final double BACKOFF_RATIO = 0.5;
+    // a latency this many times the baseline counts as overload
+    static final double LATENCY_TOLERANCE = 2.0;
+    // share of the difference the baseline moves towards the latency of every answer
+    static final double BASELINE_DRIFT = 0.1;
+
+    private final String host;
+    private final int maxLimit;
+    private final LongSupplier nanoTime;
+
+    // guarded by this
+    private double limit;
+    private double baselineNanos = -1;
+    private long lastDecreaseAt;
+
+    /**
+     * @param maxLimit upper bound of the limit, which starts at half of it
+     */
+    public AdaptiveConcurrencyLimit(String host, int maxLimit) {
+        this(host, maxLimit, System::nanoTime);
+    }
+
+    AdaptiveConcurrencyLimit(String host, int maxLimit, LongSupplier nanoTime) {
+        this.host = host;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.nanoTime = nanoTime;
+        this.limit = Math.max(1, (this.maxLimit + 1) / 2);
+        this.lastDecreaseAt = nanoTime.getAsLong();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the baseline latency in milliseconds, -1 before the first request completed
+     */
+    public synchronized long getBaselineMillis() {
+        return baselineNanos < 0 ? -1 : (long) (baselineNanos / 1000000);
+    }
+
+    /**
+     * Records the outcome of a request.
+     *
+     * @param startNanos   {@link System#nanoTime()} when the request was started
+     * @param latencyNanos time until the answer or the failure
+     * @param overloaded   true if the request timed out or the host answered with a server error or 429,
+     *                     whose latency says nothing about the host's normal latency
+     */
+    public synchronized void onSample(long startNanos, long latencyNanos, boolean overloaded) {
+        if (!overloaded) {
+            if (baselineNanos < 0) {
+                baselineNanos = latencyNanos;
+            }
+            else {
+                overloaded = latencyNanos > baselineNanos * LATENCY_TOLERANCE;
+                baselineNanos += (latencyNanos - baselineNanos) * BASELINE_DRIFT;
+            }
+        }
+        if (!overloaded) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            return;
+        }
+        if (startNanos - lastDecreaseAt < 0) {
+            // sent before the limit was decreased last, that decrease already accounted for it
+            return;
+        }
+        lastDecreaseAt = nanoTime.getAsLong();
+        double decreased = Math.max(1, Math.floor(limit * BACKOFF_RATIO));
+        if (decreased < limit && logger.isLoggable(Level.FINE)) {
+            logger.fine("Decreasing concurrency limit for Bitbucket host " + host + " from " + (int) limit +
+                        " to " + (int) decreased);
+        }
+        limit = decreased;
+    }
+}
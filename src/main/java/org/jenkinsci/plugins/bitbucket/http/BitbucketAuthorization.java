@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import com.cloudbees.plugins.credentials.CredentialsMatcher;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import okhttp3.Credentials;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+/**
+ * Computes the Authorization header sent with every request, so that Bitbucket does not have to
+ * challenge an unauthenticated request first. Username/password credentials use Basic auth,
+ * secret text credentials are sent as a Bearer personal access token.
+ */
+public final class BitbucketAuthorization {
+
+    public static final CredentialsMatcher SUPPORTED_CREDENTIALS = CredentialsMatchers.anyOf(
+        CredentialsMatchers.instanceOf(StandardUsernamePasswordCredentials.class),
+        CredentialsMatchers.instanceOf(StringCredentials.class));
+
+    private BitbucketAuthorization() {
+    }
+
+    /**
+     * Returns the header for the credentials. It is built for each request and not kept, so the
+     * secret only stays in memory in its encrypted form.
+     */
+    public static String header(StandardCredentials credentials) {
+        if (credentials instanceof StandardUsernamePasswordCredentials) {
+            StandardUsernamePasswordCredentials c = (StandardUsernamePasswordCredentials) credentials;
+            return Credentials.basic(c.getUsername(), c.getPassword().getPlainText());
+        }
+        if (credentials instanceof StringCredentials) {
+            return "Bearer " + ((StringCredentials) credentials).getSecret().getPlainText();
+        }
+        throw new IllegalArgumentException("Unsupported credentials type " + credentials.getClass().getName() +
+                                           ", use username with password or secret text");
+    }
+}
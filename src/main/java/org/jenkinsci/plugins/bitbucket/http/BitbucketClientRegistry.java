@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one long-lived {@link OkHttpClient} per Bitbucket host so that notifications reuse
+ * kept-alive connections instead of opening a new pool and TLS session for every request.
+ */
+public final class BitbucketClientRegistry {
+    private static final Logger logger = Logger.getLogger(BitbucketClientRegistry.class.getName());
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long READ_TIMEOUT_SECONDS = 60;
+
+    private static final BitbucketClientRegistry INSTANCE = new BitbucketClientRegistry();
+
+    private final ConcurrentMap<String, OkHttpClient> clients = new ConcurrentHashMap<String, OkHttpClient>();
+    private volatile int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private volatile long keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private volatile Map<String, PoolSettings> hostSettings = Collections.emptyMap();
+
+    /**
+     * Connection pool settings of one host, 0 or less for the global setting.
+     */
+    public static final class PoolSettings {
+        private final int maxIdleConnections;
+        private final long keepAliveSeconds;
+
+        public PoolSettings(int maxIdleConnections, long keepAliveSeconds) {
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveSeconds = keepAliveSeconds;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PoolSettings)) {
+                return false;
+            }
+            PoolSettings other = (PoolSettings) o;
+            return maxIdleConnections == other.maxIdleConnections && keepAliveSeconds == other.keepAliveSeconds;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * maxIdleConnections + Long.hashCode(keepAliveSeconds);
+        }
+    }
+
+    private BitbucketClientRegistry() {
+    }
+
+    public static BitbucketClientRegistry get() {
+        return INSTANCE;
+    }
+
+    public OkHttpClient getClient(String bitbucketHost) {
+        return clients.computeIfAbsent(normalize(bitbucketHost), this::createClient);
+    }
+
+    /**
+     * Applies new pool settings. Clients created with the previous settings are released and
+     * lazily recreated on the next request; calls already in flight are allowed to complete.
+     *
+     * @param hostSettings settings of the hosts that do not use the global ones
+     */
+    public synchronized void reconfigure(int maxIdleConnections, long keepAliveSeconds,
+                                         Map<String, PoolSettings> hostSettings) {
+        int idle = maxIdleConnections > 0 ? maxIdleConnections : DEFAULT_MAX_IDLE_CONNECTIONS;
+        long keepAlive = keepAliveSeconds > 0 ? keepAliveSeconds : DEFAULT_KEEP_ALIVE_SECONDS;
+        Map<String, PoolSettings> normalized = new HashMap<String, PoolSettings>();
+        for (Map.Entry<String, PoolSettings> entry : hostSettings.entrySet()) {
+            normalized.put(normalize(entry.getKey()), entry.getValue());
+        }
+        if (idle == this.maxIdleConnections && keepAlive == this.keepAliveSeconds &&
+            normalized.equals(this.hostSettings)) {
+            return;
+        }
+        logger.info("Reconfiguring Bitbucket http clients: maxIdleConnections=" + idle +
+                    ", keepAliveSeconds=" + keepAlive + ", hosts with own settings=" + normalized.keySet());
+        this.maxIdleConnections = idle;
+        this.keepAliveSeconds = keepAlive;
+        this.hostSettings = normalized;
+        release();
+    }
+
+    public synchronized void shutdown() {
+        logger.info("Shutting down Bitbucket http clients");
+        release();
+    }
+
+    private void release() {
+        List<OkHttpClient> released = new ArrayList<OkHttpClient>(clients.values());
+        clients.clear();
+        for (OkHttpClient client : released) {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+    }
+
+    private OkHttpClient createClient(String host) {
+        int idle = maxIdleConnections;
+        long keepAlive = keepAliveSeconds;
+        PoolSettings settings = hostSettings.get(host);
+        if (settings != null) {
+            idle = settings.maxIdleConnections > 0 ? settings.maxIdleConnections : idle;
+            keepAlive = settings.keepAliveSeconds > 0 ? settings.keepAliveSeconds : keepAlive;
+        }
+        return new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(idle, keepAlive, TimeUnit.SECONDS))
+            .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .build();
+    }
+
+    private static String normalize(String bitbucketHost) {
+        String host = bitbucketHost == null ? "" : bitbucketHost.trim().toLowerCase();
+        while (host.endsWith("/")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        return host;
+    }
+}
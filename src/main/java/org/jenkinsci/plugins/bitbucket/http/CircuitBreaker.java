@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Stops calling a Bitbucket host that keeps failing or answering slowly.
+ * <p>
+ * The outcomes of the last {@value #WINDOW_SIZE} calls are kept. Once the failure rate or the
+ * slow call rate of the window reaches its threshold the breaker opens and no calls are
+ * permitted until the open duration elapsed. Then a few probe calls are let through: if all of
+ * them succeed the breaker closes again, a single failure opens it for another period.
+ */
+public final class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 80;
+    public static final long DEFAULT_SLOW_CALL_SECONDS = 10;
+    public static final long DEFAULT_OPEN_SECONDS = 30;
+
+    static final int WINDOW_SIZE = 20;
+    static final int MINIMUM_CALLS = 10;
+    static final int PERMITTED_PROBES = 3;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final LongSupplier nanoTime;
+
+    // ring buffer of the last calls, guarded by this
+    private final boolean[] failed = new boolean[WINDOW_SIZE];
+    private final boolean[] slow = new boolean[WINDOW_SIZE];
+    private int calls;
+    private int next;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    public CircuitBreaker(String host, int failureRateThreshold, int slowCallRateThreshold,
+                          long slowCallSeconds, long openSeconds) {
+        this(host, failureRateThreshold, slowCallRateThreshold, slowCallSeconds, openSeconds, System::nanoTime);
+    }
+
+    CircuitBreaker(String host, int failureRateThreshold, int slowCallRateThreshold,
+                   long slowCallSeconds, long openSeconds, LongSupplier nanoTime) {
+        this.host = host;
+        this.nanoTime = nanoTime;
+        this.failureRateThreshold = failureRateThreshold > 0 ? failureRateThreshold : DEFAULT_FAILURE_RATE_THRESHOLD;
+        this.slowCallRateThreshold = slowCallRateThreshold > 0 ? slowCallRateThreshold : DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+        this.slowCallNanos = TimeUnit.SECONDS.toNanos(slowCallSeconds > 0 ? slowCallSeconds : DEFAULT_SLOW_CALL_SECONDS);
+        this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds > 0 ? openSeconds : DEFAULT_OPEN_SECONDS);
+    }
+
+    /**
+     * @return true if a call may be made now. A permitted call must be followed by
+     * {@link #onSuccess} or {@link #onFailure}.
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (nanoTime.getAsLong() - openedAt < openNanos) {
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= PERMITTED_PROBES) {
+                return false;
+            }
+            probesStarted++;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess(long durationNanos) {
+        boolean slowCall = durationNanos >= slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            if (slowCall) {
+                transitionTo(State.OPEN);
+            }
+            else if (++probesSucceeded >= PERMITTED_PROBES) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        record(false, slowCall);
+    }
+
+    public synchronized void onFailure(long durationNanos) {
+        if (state == State.HALF_OPEN) {
+            transitionTo(State.OPEN);
+            return;
+        }
+        record(true, durationNanos >= slowCallNanos);
+    }
+
+    /**
+     * Gives back a permission that did not lead to a call, e.g. because the request could not be built.
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && probesStarted > probesSucceeded) {
+            probesStarted--;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return how many more probe calls a half open breaker permits, e.g. after a permission was given back
+     */
+    public synchronized int getAvailableProbes() {
+        return state == State.HALF_OPEN ? PERMITTED_PROBES - probesStarted : 0;
+    }
+
+    /**
+     * @return milliseconds until probe calls are permitted, 0 if calls are permitted now or the
+     * breaker waits for the outcome of its probes
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (nanoTime.getAsLong() - openedAt)));
+    }
+
+    private void record(boolean failure, boolean slowCall) {
+        if (state != State.CLOSED) {
+            // a call permitted before the breaker opened
+            return;
+        }
+        if (calls == WINDOW_SIZE) {
+            if (failed[next]) {
+                failures--;
+            }
+            if (slow[next]) {
+                slowCalls--;
+            }
+        }
+        else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = slowCall;
+        if (failure) {
+            failures++;
+        }
+        if (slowCall) {
+            slowCalls++;
+        }
+        next = (next + 1) % WINDOW_SIZE;
+
+        if (calls >= MINIMUM_CALLS &&
+            (failures * 100 >= failureRateThreshold * calls || slowCalls * 100 >= slowCallRateThreshold * calls)) {
+            logger.warning("Bitbucket host " + host + " failed " + failures + " and was slow in " + slowCalls +
+                           " of the last " + calls + " calls");
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void transitionTo(State newState) {
+        logger.info("Circuit breaker for Bitbucket host " + host + " changes from " + state + " to " + newState);
+        state = newState;
+        if (newState == State.OPEN) {
+            openedAt = nanoTime.getAsLong();
+        }
+        if (newState == State.HALF_OPEN) {
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+        if (newState == State.CLOSED) {
+            calls = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+}
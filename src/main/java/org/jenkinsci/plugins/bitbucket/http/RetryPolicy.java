@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed build status request is sent again. Posting a status is
+ * idempotent (Bitbucket keeps one status per commit and key), so connection failures and
+ * transient server errors can safely be retried.
+ */
+public final class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_INITIAL_DELAY_SECONDS = 1;
+    public static final long DEFAULT_MAX_DELAY_SECONDS = 60;
+
+    // upper bound for a Retry-After sent by the server, so a bogus value cannot park a status forever
+    private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_ATTEMPTS,
+        DEFAULT_INITIAL_DELAY_SECONDS, DEFAULT_MAX_DELAY_SECONDS);
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxAttempts, long initialDelaySeconds, long maxDelaySeconds) {
+        this.maxAttempts = maxAttempts > 0 ? maxAttempts : DEFAULT_MAX_ATTEMPTS;
+        this.initialDelayMillis = TimeUnit.SECONDS.toMillis(
+            initialDelaySeconds > 0 ? initialDelaySeconds : DEFAULT_INITIAL_DELAY_SECONDS);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, TimeUnit.SECONDS.toMillis(
+            maxDelaySeconds > 0 ? maxDelaySeconds : DEFAULT_MAX_DELAY_SECONDS));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempts number of attempts made so far, including the one that just failed
+     */
+    public boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    public static boolean isSuccessful(int httpStatus) {
+        return httpStatus >= 200 && httpStatus < 300;
+    }
+
+    /**
+     * Timeouts, throttling and gateway/server errors are worth another attempt. Other client
+     * errors (bad credentials, unknown commit) will fail the same way again.
+     */
+    public static boolean isRetryable(int httpStatus) {
+        switch (httpStatus) {
+            case 408:
+            case 429:
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Delay before the next attempt: the server's Retry-After for 429 and 503, otherwise capped
+     * exponential backoff with jitter, so that many failed statuses do not come back all at once.
+     *
+     * @param attempts   number of attempts made so far
+     * @param httpStatus status of the failed attempt, or -1 if it failed with an I/O error
+     * @param retryAfter value of the Retry-After header, may be null
+     */
+    public long delayMillis(int attempts, int httpStatus, String retryAfter) {
+        if (httpStatus == 429 || httpStatus == 503) {
+            long serverDelay = parseRetryAfter(retryAfter);
+            if (serverDelay >= 0) {
+                return Math.min(serverDelay, MAX_RETRY_AFTER_MILLIS);
+            }
+        }
+        long cap = maxDelayMillis;
+        int shift = Math.min(attempts - 1, 30);
+        if (shift >= 0 && initialDelayMillis <= (maxDelayMillis >> shift)) {
+            cap = initialDelayMillis << shift;
+        }
+        // half of the delay is fixed, the other half random
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    /**
+     * Parses a Retry-After value given either in seconds or as an http date.
+     *
+     * @return the delay in milliseconds, or -1 if the value is missing or invalid
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        String value = retryAfter.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        }
+        catch (NumberFormatException e) {
+            // not a number, try a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        }
+        catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the requests sent to a Bitbucket host to a sustained rate while allowing short bursts.
+ * <p>
+ * The bucket holds up to {@code burst} tokens and is refilled at {@code permitsPerSecond}. Callers
+ * never block on it: {@link #reserve()} takes a token right away, even if the bucket is empty, and
+ * tells how long the caller has to wait before using it. Reservations made while the bucket is
+ * empty are therefore spaced out evenly at the sustained rate.
+ */
+public final class TokenBucketRateLimiter {
+    public static final int DEFAULT_PERMITS_PER_SECOND = 10;
+    public static final int DEFAULT_BURST = 20;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int permitsPerSecond;
+    private final int burst;
+    private final LongSupplier nanoTime;
+
+    // guarded by this, may become negative when more tokens were reserved than available
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond sustained rate, 0 or less disables the limiter
+     * @param burst            number of requests that may be sent at once after a quiet period
+     */
+    public TokenBucketRateLimiter(int permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    TokenBucketRateLimiter(int permitsPerSecond, int burst, LongSupplier nanoTime) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst > 0 ? burst : DEFAULT_BURST;
+        this.nanoTime = nanoTime;
+        this.tokens = this.burst;
+        this.refilledAt = nanoTime.getAsLong();
+    }
+
+    public boolean isEnabled() {
+        return permitsPerSecond > 0;
+    }
+
+    /**
+     * Takes a token.
+     *
+     * @return nanoseconds the caller has to wait before sending its request, 0 to send it now
+     */
+    public synchronized long reserve() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long now = nanoTime.getAsLong();
+        tokens = Math.min(burst, tokens + (double) (now - refilledAt) * permitsPerSecond / NANOS_PER_SECOND);
+        refilledAt = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * NANOS_PER_SECOND / permitsPerSecond);
+    }
+
+    /**
+     * @return tokens left in the bucket, negative while reservations wait for their turn
+     */
+    public synchronized double getAvailableTokens() {
+        return tokens;
+    }
+}
@@ -24,7 +24,10 @@
 
 package org.jenkinsci.plugins.bitbucket.model;
 
-public class BitbucketBuildStatus {
+import java.io.Serializable;
+
+public class BitbucketBuildStatus implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     // indicates that a build for the commit completed successfully
     public static final String SUCCESSFUL = "SUCCESSFUL";
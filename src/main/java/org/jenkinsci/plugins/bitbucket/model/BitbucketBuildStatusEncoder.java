@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.model;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.ByteString;
+
+import java.io.IOException;
+
+/**
+ * Writes a {@link BitbucketBuildStatus} as compact JSON straight into the request sink.
+ * The output is the same as Gson's default (HTML safe) compact encoding: null fields are
+ * left out, and so are empty names and descriptions.
+ */
+public final class BitbucketBuildStatusEncoder {
+
+    public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private static final ByteString STATE = ByteString.encodeUtf8("\"state\":");
+    private static final ByteString KEY = ByteString.encodeUtf8("\"key\":");
+    private static final ByteString URL = ByteString.encodeUtf8("\"url\":");
+    private static final ByteString NAME = ByteString.encodeUtf8("\"name\":");
+    private static final ByteString DESCRIPTION = ByteString.encodeUtf8("\"description\":");
+
+    // replacements for the characters below 128 that have to be escaped, null for the others
+    private static final String[] REPLACEMENTS = new String[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            REPLACEMENTS[c] = String.format("\\u%04x", c);
+        }
+        REPLACEMENTS['"'] = "\\\"";
+        REPLACEMENTS['\\'] = "\\\\";
+        REPLACEMENTS['\t'] = "\\t";
+        REPLACEMENTS['\b'] = "\\b";
+        REPLACEMENTS['\n'] = "\\n";
+        REPLACEMENTS['\r'] = "\\r";
+        REPLACEMENTS['\f'] = "\\f";
+        REPLACEMENTS['<'] = "\\u003c";
+        REPLACEMENTS['>'] = "\\u003e";
+        REPLACEMENTS['&'] = "\\u0026";
+        REPLACEMENTS['='] = "\\u003d";
+        REPLACEMENTS['\''] = "\\u0027";
+    }
+
+    private static final String LINE_SEPARATOR = "\\u2028";
+    private static final String PARAGRAPH_SEPARATOR = "\\u2029";
+
+    private BitbucketBuildStatusEncoder() {
+    }
+
+    public static RequestBody requestBody(final BitbucketBuildStatus buildStatus) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public long contentLength() {
+                return encodedLength(buildStatus);
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                encode(buildStatus, sink);
+            }
+        };
+    }
+
+    public static void encode(BitbucketBuildStatus buildStatus, BufferedSink sink) throws IOException {
+        sink.writeByte('{');
+        boolean first = true;
+        first = writeField(sink, STATE, buildStatus.getState(), first, false);
+        first = writeField(sink, KEY, buildStatus.getKey(), first, false);
+        first = writeField(sink, URL, buildStatus.getUrl(), first, false);
+        first = writeField(sink, NAME, buildStatus.getName(), first, true);
+        writeField(sink, DESCRIPTION, buildStatus.getDescription(), first, true);
+        sink.writeByte('}');
+    }
+
+    /**
+     * Number of bytes {@link #encode} writes, computed without encoding anything.
+     */
+    public static long encodedLength(BitbucketBuildStatus buildStatus) {
+        long length = 2;
+        boolean first = true;
+        String[] values = {buildStatus.getState(), buildStatus.getKey(), buildStatus.getUrl(),
+                           buildStatus.getName(), buildStatus.getDescription()};
+        ByteString[] names = {STATE, KEY, URL, NAME, DESCRIPTION};
+        for (int i = 0; i < values.length; i++) {
+            if (!isPresent(values[i], i >= 3)) {
+                continue;
+            }
+            if (!first) {
+                length++;
+            }
+            first = false;
+            length += names[i].size() + stringLength(values[i]);
+        }
+        return length;
+    }
+
+    private static boolean isPresent(String value, boolean optional) {
+        return value != null && !(optional && value.isEmpty());
+    }
+
+    private static boolean writeField(BufferedSink sink, ByteString name, String value, boolean first,
+                                      boolean optional) throws IOException {
+        if (!isPresent(value, optional)) {
+            return first;
+        }
+        if (!first) {
+            sink.writeByte(',');
+        }
+        sink.write(name);
+        writeString(sink, value);
+        return false;
+    }
+
+    private static void writeString(BufferedSink sink, String value) throws IOException {
+        sink.writeByte('"');
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            String replacement = replacementFor(value.charAt(i));
+            if (replacement == null) {
+                continue;
+            }
+            if (last < i) {
+                sink.writeUtf8(value, last, i);
+            }
+            sink.writeUtf8(replacement);
+            last = i + 1;
+        }
+        if (last < length) {
+            sink.writeUtf8(value, last, length);
+        }
+        sink.writeByte('"');
+    }
+
+    private static long stringLength(String value) {
+        long length = 2;
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            String replacement = replacementFor(c);
+            if (replacement != null) {
+                length += replacement.length();
+            }
+            else if (c < 0x80) {
+                length++;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (!Character.isSurrogate(c)) {
+                length += 3;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                // okio writes a lone surrogate as '?'
+                length++;
+            }
+        }
+        return length;
+    }
+
+    private static String replacementFor(char c) {
+        if (c < 128) {
+            return REPLACEMENTS[c];
+        }
+        if (c == '\u2028') {
+            return LINE_SEPARATOR;
+        }
+        if (c == '\u2029') {
+            return PARAGRAPH_SEPARATOR;
+        }
+        return null;
+    }
+}
@@ -24,7 +24,10 @@
 
 package org.jenkinsci.plugins.bitbucket.model;
 
-public class BitbucketBuildStatusResource {
+import java.io.Serializable;
+
+public class BitbucketBuildStatusResource implements Serializable {
+    private static final long serialVersionUID = 1L;
 
 //    private static final String API_ENDPOINT = "https://bitbucket.atlassian.teliacompany.net";
 
@@ -27,11 +27,13 @@ package org.jenkinsci.plugins.bitbucket.scm;
 import hudson.model.Run;
 import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.util.BuildData;
+import org.jenkinsci.plugins.bitbucket.BitbucketCheckoutsAction;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Logger;
 
 import org.eclipse.jgit.transport.RemoteConfig;
@@ -48,32 +50,60 @@ public class GitScmAdapter implements ScmAdapter {
         this.build = build;
     }
 
-    public Map<String, URIish> getCommitRepoMap() throws Exception {
+    public Map<URIish, String> getRepoCommitMap() throws Exception {
         List<RemoteConfig> repoList = this.gitScm.getRepositories();
-        if (repoList.size() != 1) {
-            throw new Exception("None or multiple repos");
+        if (repoList.isEmpty()) {
+            throw new Exception("No repos");
         }
 
-        HashMap<String, URIish> commitRepoMap = new HashMap<String, URIish>();
-        List<BuildData> actions = build.getActions(BuildData.class);
-        BuildData buildData = null;
-        for (BuildData action : actions) {
-            List<URIish> urIs = repoList.get(0).getURIs();
-            logger.info("Repo urls:" + urIs);
-            for (String remoteUrl : action.getRemoteUrls()) {
-                logger.info("Action remote url: "+ remoteUrl);
-                if(remoteUrl.equals(urIs.get(0).toString())) {
-                    logger.info("Action and git match: "+ remoteUrl);
-                    buildData = action;
+        Map<URIish, String> repoCommitMap = new LinkedHashMap<URIish, String>();
+        Map<String, String> revisions = getRevisions();
+        for (RemoteConfig repo : repoList) {
+            URIish repoUri = repo.getURIs().get(0);
+            String revision = revisions.get(normalize(repoUri.toString()));
+            if (revision == null) {
+                logger.warning("Build data could not be found for " + repoUri);
+            } else {
+                repoCommitMap.put(repoUri, revision);
+            }
+        }
+
+        return repoCommitMap;
+    }
+
+    /**
+     * @return the revision the build last built for each normalized remote url, as recorded at
+     * checkout or else as found in the build data of the build
+     */
+    private Map<String, String> getRevisions() {
+        Map<String, String> revisions = new HashMap<String, String>();
+        for (BuildData buildData : build.getActions(BuildData.class)) {
+            if (buildData.getLastBuiltRevision() != null) {
+                String revision = buildData.getLastBuiltRevision().getSha1String();
+                for (String remoteUrl : buildData.getRemoteUrls()) {
+                    revisions.put(normalize(remoteUrl), revision);
                 }
             }
         }
-        if (buildData == null || buildData.getLastBuiltRevision() == null) {
-            logger.warning("Build data could not be found");
-        } else {
-            commitRepoMap.put(buildData.getLastBuiltRevision().getSha1String(), repoList.get(0).getURIs().get(0));
+        BitbucketCheckoutsAction checkouts = build.getAction(BitbucketCheckoutsAction.class);
+        if (checkouts != null) {
+            for (BitbucketCheckoutsAction.Checkout checkout : checkouts.getCheckouts()) {
+                if (checkout.getRemoteUrl() != null) {
+                    revisions.put(normalize(checkout.getRemoteUrl()), checkout.getCommitId());
+                }
+            }
         }
+        return revisions;
+    }
 
-        return commitRepoMap;
+    static String normalize(String remoteUrl) {
+        String url = remoteUrl.trim();
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        if (url.endsWith(".git")) {
+            url = url.substring(0, url.length() - ".git".length());
+        }
+        return url.toLowerCase(Locale.ENGLISH);
     }
 }
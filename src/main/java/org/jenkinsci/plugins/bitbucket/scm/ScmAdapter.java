@@ -29,5 +29,8 @@ import org.eclipse.jgit.transport.URIish;
 import java.util.Map;
 
 public interface ScmAdapter {
-    Map<String, URIish> getCommitRepoMap() throws Exception;
+    /**
+     * @return the revision built for each remote repository of the build
+     */
+    Map<URIish, String> getRepoCommitMap() throws Exception;
 }
\ No newline at end of file
@@ -24,18 +24,75 @@
 
 package org.jenkinsci.plugins.bitbucket.validator;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Routes the host of a repository to the configured Bitbucket instance hosting it. The host and
+ * port of every instance are looked up in maps computed once, so routing does not depend on the
+ * number of instances.
+ */
 public class BitbucketHostValidator {
   private static final Logger logger = Logger.getLogger(BitbucketHostValidator.class.getName());
 
-  public boolean isValid(final String value, final String configuredHost) {
-    String host = configuredHost.replaceAll("https?://", "");
-    logger.info("Host for check " + value + ", valid: " + value.contains(host));
-    return value.contains(host);
+  private final List<String> bitbucketHosts = new ArrayList<String>();
+  private final Map<String, String> byHostAndPort = new HashMap<String, String>();
+  private final Map<String, String> byHost = new HashMap<String, String>();
+
+  /**
+   * @param bitbucketHosts urls of the Bitbucket instances, the first instance of a host wins
+   */
+  public BitbucketHostValidator(Collection<String> bitbucketHosts) {
+    for (String bitbucketHost : bitbucketHosts) {
+      URI uri;
+      try {
+        uri = URI.create(bitbucketHost.trim());
+      }
+      catch (IllegalArgumentException e) {
+        logger.log(Level.WARNING, "Ignoring invalid Bitbucket host " + bitbucketHost, e);
+        continue;
+      }
+      if (uri.getHost() == null) {
+        logger.warning("Ignoring Bitbucket host without host name " + bitbucketHost);
+        continue;
+      }
+      String host = uri.getHost().toLowerCase(Locale.ENGLISH);
+      this.bitbucketHosts.add(bitbucketHost);
+      byHostAndPort.putIfAbsent(host + ":" + uri.getPort(), bitbucketHost);
+      byHost.putIfAbsent(host, bitbucketHost);
+    }
+  }
+
+  public BitbucketHostValidator() {
+    this(Collections.<String>emptyList());
+  }
+
+  /**
+   * Finds the instance with the same host and port as the repository, or else the first instance
+   * with the same host, as repositories are also cloned over ssh on another port.
+   *
+   * @param port port of the repository url, -1 for the default port
+   * @return the url of the instance, null if no instance hosts the repository
+   */
+  public String route(final String host, int port) {
+    if (host == null) {
+      return null;
+    }
+    String normalized = host.toLowerCase(Locale.ENGLISH);
+    String bitbucketHost = byHostAndPort.get(normalized + ":" + port);
+    return bitbucketHost != null ? bitbucketHost : byHost.get(normalized);
   }
 
-  public String renderError(String bitbucketHost) {
-    return "Bitbucket build notifier support only repositories hosted in " + bitbucketHost;
+  public String renderError(String host) {
+    return "Bitbucket build notifier support only repositories hosted in " + String.join(", ", bitbucketHosts) +
+           ", not in " + host;
   }
 }
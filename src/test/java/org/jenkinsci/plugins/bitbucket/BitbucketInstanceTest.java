@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketInstanceTest {
+
+  private static final String HOST = "https://bitbucket.example.com";
+
+  @Test
+  public void migratesTheSingleInstanceOfOlderVersions() {
+    List<BitbucketInstance> instances = BitbucketInstance.migrate(null, " " + HOST + " ", "bitbucket-credentials");
+    assertEquals(1, instances.size());
+    assertEquals(HOST, instances.get(0).getUrl());
+    assertEquals("bitbucket-credentials", instances.get(0).getCredentialsId());
+  }
+
+  @Test
+  public void migratesAnInstanceWithoutCredentials() {
+    List<BitbucketInstance> instances = BitbucketInstance.migrate(new ArrayList<BitbucketInstance>(), HOST, "");
+    assertEquals(1, instances.size());
+    assertNull(instances.get(0).getCredentialsId());
+  }
+
+  @Test
+  public void keepsConfiguredInstances() {
+    List<BitbucketInstance> configured = new ArrayList<BitbucketInstance>(
+      Collections.singletonList(new BitbucketInstance("https://git.example.org")));
+    List<BitbucketInstance> instances = BitbucketInstance.migrate(configured, HOST, "bitbucket-credentials");
+    assertSame(configured, instances);
+    assertEquals(1, instances.size());
+    assertEquals("https://git.example.org", instances.get(0).getUrl());
+  }
+
+  @Test
+  public void migratesNothingWithoutAHost() {
+    assertTrue(BitbucketInstance.migrate(null, null, "bitbucket-credentials").isEmpty());
+    assertTrue(BitbucketInstance.migrate(null, "  ", "bitbucket-credentials").isEmpty());
+  }
+}
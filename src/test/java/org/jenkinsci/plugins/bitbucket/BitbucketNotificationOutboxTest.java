@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketNotificationOutboxTest {
+
+  private static final String HOST = "https://bitbucket.example.com";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static BitbucketNotification notification(String commitId, String key, String state) {
+    return new BitbucketNotification("bitbucket-credentials", "folder/job",
+      new BitbucketBuildStatusResource("PROJ", "repo", commitId, HOST),
+      new BitbucketBuildStatus(state, key, "https://jenkins.example.com/job/folder/job/job/1/", "job #1", null));
+  }
+
+  /**
+   * Opens the journal in the directory like a restart does and closes it again.
+   */
+  private List<BitbucketNotificationOutbox.Entry> reopen(File directory) throws IOException {
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    List<BitbucketNotificationOutbox.Entry> entries =
+      new ArrayList<BitbucketNotificationOutbox.Entry>(outbox.open(directory));
+    outbox.close();
+    return entries;
+  }
+
+  private static File journal(File directory) {
+    return new File(directory, "outbox.journal");
+  }
+
+  @Test
+  public void pendingStatusSurvivesARestart() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    assertTrue(outbox.open(directory).isEmpty());
+    BitbucketNotification notification = notification("a83c709e", "key", BitbucketBuildStatus.SUCCESSFUL);
+    outbox.appendPending(notification);
+    outbox.close();
+
+    List<BitbucketNotificationOutbox.Entry> entries = reopen(directory);
+    assertEquals(1, entries.size());
+    BitbucketNotificationOutbox.Entry entry = entries.get(0);
+    assertEquals(notification.getJournalSequence(), entry.getSequence());
+    assertEquals(notification.getCoalescingKey(), entry.getCoalescingKey());
+    assertEquals("PROJ", entry.getResource().getOwner());
+    assertEquals("repo", entry.getResource().getRepoSlug());
+    assertEquals("a83c709e", entry.getResource().getCommitId());
+    assertEquals(HOST, entry.getResource().getBitbucketHost());
+    assertEquals(BitbucketBuildStatus.SUCCESSFUL, entry.getStatus().getState());
+    assertEquals("key", entry.getStatus().getKey());
+    assertEquals("job #1", entry.getStatus().getName());
+    assertNull(entry.getStatus().getDescription());
+    assertEquals("bitbucket-credentials", entry.getCredentialsId());
+    assertEquals("folder/job", entry.getJobFullName());
+  }
+
+  @Test
+  public void deliveredStatusIsNotReplayed() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    BitbucketNotification delivered = notification("a83c709e", "key", BitbucketBuildStatus.SUCCESSFUL);
+    BitbucketNotification pending = notification("a83c709e", "other", BitbucketBuildStatus.INPROGRESS);
+    outbox.appendPending(delivered);
+    outbox.appendPending(pending);
+    outbox.appendDone(delivered.getCoalescingKey(), delivered.getJournalSequence());
+    outbox.close();
+
+    List<BitbucketNotificationOutbox.Entry> entries = reopen(directory);
+    assertEquals(1, entries.size());
+    assertEquals("other", entries.get(0).getStatus().getKey());
+  }
+
+  @Test
+  public void newerStatusForTheSameKeyStaysPendingWhenTheOlderOneIsDelivered() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    BitbucketNotification older = notification("a83c709e", "key", BitbucketBuildStatus.INPROGRESS);
+    BitbucketNotification newer = notification("a83c709e", "key", BitbucketBuildStatus.FAILED);
+    outbox.appendPending(older);
+    outbox.appendPending(newer);
+    outbox.appendDone(older.getCoalescingKey(), older.getJournalSequence());
+    outbox.close();
+
+    List<BitbucketNotificationOutbox.Entry> entries = reopen(directory);
+    assertEquals(1, entries.size());
+    assertEquals(BitbucketBuildStatus.FAILED, entries.get(0).getStatus().getState());
+  }
+
+  @Test
+  public void olderStatusIsNotReplayedWhenTheNewerOneCannotBeJournaled() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    StringBuilder description = new StringBuilder();
+    while (description.length() <= 65535) {
+      description.append("failed test ");
+    }
+    BitbucketNotification older = notification("a83c709e", "key", BitbucketBuildStatus.INPROGRESS);
+    BitbucketNotification newer = new BitbucketNotification("bitbucket-credentials", "folder/job",
+      new BitbucketBuildStatusResource("PROJ", "repo", "a83c709e", HOST),
+      new BitbucketBuildStatus(BitbucketBuildStatus.FAILED, "key", "https://jenkins.example.com/job/folder/job/job/1/",
+        "job #1", description.toString()));
+    outbox.appendPending(older);
+    outbox.appendPending(newer);
+    outbox.close();
+
+    assertEquals(-1, newer.getJournalSequence());
+    assertTrue(reopen(directory).isEmpty());
+  }
+
+  @Test
+  public void replayedStatusesStayJournaledUntilTheyAreResubmitted() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    outbox.appendPending(notification("a83c709e", "key", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.close();
+
+    // a crash right after the restart, before anything was resubmitted
+    assertEquals(1, reopen(directory).size());
+    assertEquals(1, reopen(directory).size());
+  }
+
+  @Test
+  public void tornRecordAtTheEndIsIgnored() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    outbox.appendPending(notification("a83c709e", "first", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.close();
+    long complete = journal(directory).length();
+    outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    outbox.appendPending(notification("a83c709e", "second", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.close();
+
+    // the controller died while the second record was written
+    try (RandomAccessFile file = new RandomAccessFile(journal(directory), "rw")) {
+      file.setLength(complete + (file.length() - complete) / 2);
+    }
+
+    List<BitbucketNotificationOutbox.Entry> entries = reopen(directory);
+    assertEquals(1, entries.size());
+    assertEquals("first", entries.get(0).getStatus().getKey());
+  }
+
+  @Test
+  public void corruptRecordEndsTheJournal() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    outbox.appendPending(notification("a83c709e", "first", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.close();
+    long complete = journal(directory).length();
+    outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    outbox.appendPending(notification("a83c709e", "second", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.appendPending(notification("a83c709e", "third", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.close();
+
+    // flip a byte in the payload of the second record
+    try (RandomAccessFile file = new RandomAccessFile(journal(directory), "rw")) {
+      file.seek(complete + 20);
+      int b = file.read();
+      file.seek(complete + 20);
+      file.write(b ^ 0xff);
+    }
+
+    List<BitbucketNotificationOutbox.Entry> entries = reopen(directory);
+    assertEquals(1, entries.size());
+    assertEquals("first", entries.get(0).getStatus().getKey());
+  }
+
+  @Test
+  public void truncatedLengthIsIgnored() throws Exception {
+    File directory = tmp.newFolder();
+    BitbucketNotificationOutbox outbox = new BitbucketNotificationOutbox();
+    outbox.open(directory);
+    outbox.appendPending(notification("a83c709e", "first", BitbucketBuildStatus.SUCCESSFUL));
+    outbox.close();
+    long complete = journal(directory).length();
+
+    // only a part of the header of the next record made it to disk
+    try (RandomAccessFile file = new RandomAccessFile(journal(directory), "rw")) {
+      file.seek(complete);
+      file.write(new byte[] {0, 0, 1});
+    }
+
+    assertEquals(1, reopen(directory).size());
+  }
+}
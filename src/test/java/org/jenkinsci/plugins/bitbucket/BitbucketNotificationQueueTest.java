@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket;
+
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatus;
+import org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusResource;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketNotificationQueueTest {
+
+  private static final String HOST = "https://bitbucket.example.com";
+  private static final long MAX_DEFERRAL_SECONDS = 10;
+
+  private long now = 1000;
+  private final List<BitbucketNotification> dropped = new ArrayList<BitbucketNotification>();
+
+  private BitbucketNotificationQueue queue(int capacity, long maxDeferralSeconds) {
+    return new BitbucketNotificationQueue(capacity, maxDeferralSeconds, () -> now);
+  }
+
+  private static BitbucketNotification notification(String commitId, String state) {
+    return new BitbucketNotification(null, "job",
+      new BitbucketBuildStatusResource("PROJ", "repo", commitId, HOST),
+      new BitbucketBuildStatus(state, "key", "https://jenkins.example.com/job/job/1/", "job #1", null));
+  }
+
+  private static BitbucketNotification inProgress(String commitId) {
+    return notification(commitId, BitbucketBuildStatus.INPROGRESS);
+  }
+
+  private static BitbucketNotification terminal(String commitId) {
+    return notification(commitId, BitbucketBuildStatus.SUCCESSFUL);
+  }
+
+  private List<BitbucketNotification> drain(BitbucketNotificationQueue queue) {
+    List<BitbucketNotification> polled = new ArrayList<BitbucketNotification>();
+    BitbucketNotification next;
+    while ((next = queue.poll(dropped)) != null) {
+      polled.add(next);
+    }
+    return polled;
+  }
+
+  @Test
+  public void servesTerminalStatusesFirstAndTheOldestFirst() {
+    BitbucketNotificationQueue queue = queue(10, MAX_DEFERRAL_SECONDS);
+    BitbucketNotification a = inProgress("a");
+    BitbucketNotification b = terminal("b");
+    BitbucketNotification c = inProgress("c");
+    BitbucketNotification d = terminal("d");
+    for (BitbucketNotification notification : Arrays.asList(a, b, c, d)) {
+      assertTrue(queue.offer(notification, dropped));
+    }
+    assertEquals(Arrays.asList(b, d, a, c), drain(queue));
+    assertTrue(dropped.isEmpty());
+  }
+
+  @Test
+  public void defersInProgressStatusesOnceFull() {
+    BitbucketNotificationQueue queue = queue(2, MAX_DEFERRAL_SECONDS);
+    assertTrue(queue.offer(inProgress("a"), dropped));
+    assertTrue(queue.offer(inProgress("b"), dropped));
+    assertTrue(queue.offer(inProgress("c"), dropped));
+    assertEquals(2, queue.size());
+    assertEquals(1, queue.deferredSize());
+  }
+
+  @Test
+  public void terminalStatusesDeferTheYoungestInProgressOne() {
+    BitbucketNotificationQueue queue = queue(2, MAX_DEFERRAL_SECONDS);
+    BitbucketNotification a = inProgress("a");
+    BitbucketNotification b = inProgress("b");
+    BitbucketNotification t = terminal("t");
+    queue.offer(a, dropped);
+    queue.offer(b, dropped);
+    assertTrue(queue.offer(t, dropped));
+    assertEquals(2, queue.size());
+    assertEquals(1, queue.deferredSize());
+    assertEquals(Arrays.asList(t, a, b), drain(queue));
+  }
+
+  @Test
+  public void rejectsTerminalStatusesOnceFullOfThem() {
+    BitbucketNotificationQueue queue = queue(2, MAX_DEFERRAL_SECONDS);
+    assertTrue(queue.offer(terminal("a"), dropped));
+    assertTrue(queue.offer(terminal("b"), dropped));
+    assertFalse(queue.offer(terminal("c"), dropped));
+    assertEquals(2, queue.size());
+    assertEquals(0, queue.deferredSize());
+  }
+
+  @Test
+  public void requeuesDeferredStatusesOnceTheBacklogIsHalved() {
+    BitbucketNotificationQueue queue = queue(4, MAX_DEFERRAL_SECONDS);
+    for (int i = 0; i < 5; i++) {
+      queue.offer(inProgress("c" + i), dropped);
+    }
+    assertEquals(1, queue.deferredSize());
+    queue.poll(dropped);
+    queue.poll(dropped);
+    assertEquals(1, queue.deferredSize());
+    queue.poll(dropped);
+    assertEquals(0, queue.deferredSize());
+    assertEquals(2, drain(queue).size());
+    assertTrue(dropped.isEmpty());
+  }
+
+  @Test
+  public void dropsStatusesDeferredTooLong() {
+    BitbucketNotificationQueue queue = queue(1, MAX_DEFERRAL_SECONDS);
+    BitbucketNotification a = inProgress("a");
+    BitbucketNotification b = inProgress("b");
+    queue.offer(a, dropped);
+    queue.offer(b, dropped);
+    now += TimeUnit.SECONDS.toNanos(MAX_DEFERRAL_SECONDS) + 1;
+    assertSame(a, queue.poll(dropped));
+    assertEquals(Collections.singletonList(b), dropped);
+    assertNull(queue.poll(dropped));
+  }
+
+  @Test
+  public void dropsRightAwayWithoutDeferral() {
+    BitbucketNotificationQueue queue = queue(1, 0);
+    BitbucketNotification b = inProgress("b");
+    queue.offer(inProgress("a"), dropped);
+    assertTrue(queue.offer(b, dropped));
+    assertEquals(Collections.singletonList(b), dropped);
+    assertEquals(0, queue.deferredSize());
+  }
+
+  @Test
+  public void defersAtMostTheCapacity() {
+    BitbucketNotificationQueue queue = queue(2, MAX_DEFERRAL_SECONDS);
+    BitbucketNotification c = inProgress("c");
+    queue.offer(inProgress("a"), dropped);
+    queue.offer(inProgress("b"), dropped);
+    queue.offer(c, dropped);
+    queue.offer(inProgress("d"), dropped);
+    assertTrue(dropped.isEmpty());
+    queue.offer(inProgress("e"), dropped);
+    assertEquals(2, queue.deferredSize());
+    assertEquals(Collections.singletonList(c), dropped);
+  }
+
+  @Test
+  public void queuesADeferredStatusOnceItBecomesTerminal() {
+    BitbucketNotificationQueue queue = queue(1, MAX_DEFERRAL_SECONDS);
+    BitbucketNotification a = inProgress("a");
+    BitbucketNotification b = inProgress("b");
+    queue.offer(a, dropped);
+    queue.offer(b, dropped);
+    queue.update(b, () -> b.supersede(terminal("b")), dropped);
+    assertEquals(0, queue.deferredSize());
+    assertEquals(Arrays.asList(b, a), drain(queue));
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long NORMAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long now = 1000;
+
+    private AdaptiveConcurrencyLimit limit(int maxLimit) {
+        return new AdaptiveConcurrencyLimit("https://bitbucket.example.com", maxLimit, () -> now);
+    }
+
+    /**
+     * Sends one request that takes the given time, the next one starts once it was answered.
+     */
+    private void sample(AdaptiveConcurrencyLimit limit, long latencyNanos, boolean overloaded) {
+        long start = now;
+        now += latencyNanos;
+        limit.onSample(start, latencyNanos, overloaded);
+    }
+
+    @Test
+    public void startsAtHalfTheMaximum() {
+        assertEquals(4, limit(8).getLimit());
+        assertEquals(1, limit(1).getLimit());
+    }
+
+    @Test
+    public void growsWhileAnswersAreNormal() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        assertEquals(8, limit.getLimit());
+        assertEquals(100, limit.getBaselineMillis());
+    }
+
+    @Test
+    public void halvesOnOverload() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        sample(limit, NORMAL, true);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void decreasesOnlyOnceForRequestsSentBeforeTheDecrease() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        long start = now;
+        now += NORMAL;
+        limit.onSample(start, NORMAL, true);
+        limit.onSample(start, NORMAL, true);
+        limit.onSample(start, NORMAL, true);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void slowAnswerCountsAsOverload() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        sample(limit, NORMAL * 3, false);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void overloadedAnswersDoNotMoveTheBaseline() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        for (int i = 0; i < 100; i++) {
+            sample(limit, TimeUnit.MILLISECONDS.toNanos(1), true);
+        }
+        assertEquals(100, limit.getBaselineMillis());
+    }
+
+    @Test
+    public void singleFastAnswerDoesNotCollapseTheLimit() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        sample(limit, TimeUnit.MILLISECONDS.toNanos(1), false);
+        for (int i = 0; i < 200; i++) {
+            sample(limit, NORMAL, false);
+        }
+        // the baseline caught up with the normal latency and the limit recovered
+        assertTrue("baseline " + limit.getBaselineMillis(), limit.getBaselineMillis() >= 90);
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test
+    public void singleFastAnswerAmongNormalOnesIsNotOverload() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        sample(limit, TimeUnit.MILLISECONDS.toNanos(1), false);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+            assertEquals(8, limit.getLimit());
+        }
+    }
+
+    @Test
+    public void followsAHostThatGotSlowerForGood() {
+        AdaptiveConcurrencyLimit limit = limit(8);
+        for (int i = 0; i < 100; i++) {
+            sample(limit, NORMAL, false);
+        }
+        for (int i = 0; i < 200; i++) {
+            sample(limit, NORMAL * 5, false);
+        }
+        assertEquals(8, limit.getLimit());
+        assertTrue("baseline " + limit.getBaselineMillis(), limit.getBaselineMillis() >= 450);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+    private static final long OPEN = TimeUnit.SECONDS.toNanos(30);
+
+    private long now = 1000;
+
+    private CircuitBreaker breaker() {
+        return new CircuitBreaker("https://bitbucket.example.com", 50, 80, 10, 30, () -> now);
+    }
+
+    private void call(CircuitBreaker breaker, boolean failure, long durationNanos) {
+        assertTrue(breaker.tryAcquirePermission());
+        if (failure) {
+            breaker.onFailure(durationNanos);
+        }
+        else {
+            breaker.onSuccess(durationNanos);
+        }
+    }
+
+    private CircuitBreaker openBreaker() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            call(breaker, true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private CircuitBreaker halfOpenBreaker() {
+        CircuitBreaker breaker = openBreaker();
+        now += OPEN;
+        return breaker;
+    }
+
+    @Test
+    public void staysClosedBelowTheMinimumNumberOfCalls() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i++) {
+            call(breaker, true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void staysClosedBelowTheFailureRate() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE; i++) {
+            call(breaker, i % 3 == 0, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensAtTheFailureRate() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            call(breaker, i % 2 == 0, FAST);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void opensAtTheSlowCallRate() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            call(breaker, false, SLOW);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void oldCallsLeaveTheWindow() {
+        CircuitBreaker breaker = breaker();
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE; i++) {
+            call(breaker, false, FAST);
+        }
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE / 2 - 1; i++) {
+            call(breaker, true, FAST);
+        }
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE; i++) {
+            call(breaker, false, FAST);
+        }
+        for (int i = 0; i < CircuitBreaker.WINDOW_SIZE / 2 - 1; i++) {
+            call(breaker, true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(breaker, true, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void permitsProbesOnceTheOpenDurationElapsed() {
+        CircuitBreaker breaker = openBreaker();
+        now += OPEN - 1;
+        assertFalse(breaker.tryAcquirePermission());
+        assertEquals(1, breaker.getRemainingOpenMillis() + 1);
+        now += 1;
+        assertEquals(0, breaker.getRemainingOpenMillis());
+        for (int i = 0; i < CircuitBreaker.PERMITTED_PROBES; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void closesWhenAllProbesSucceed() {
+        CircuitBreaker breaker = halfOpenBreaker();
+        for (int i = 0; i < CircuitBreaker.PERMITTED_PROBES; i++) {
+            call(breaker, false, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // the window starts over
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS - 1; i++) {
+            call(breaker, true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensWhenAProbeFails() {
+        CircuitBreaker breaker = halfOpenBreaker();
+        call(breaker, false, FAST);
+        call(breaker, true, FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+        assertEquals(TimeUnit.NANOSECONDS.toMillis(OPEN), breaker.getRemainingOpenMillis());
+    }
+
+    @Test
+    public void reopensWhenAProbeIsSlow() {
+        CircuitBreaker breaker = halfOpenBreaker();
+        call(breaker, false, SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void givenBackProbesCanBeTakenAgain() {
+        CircuitBreaker breaker = halfOpenBreaker();
+        for (int i = 0; i < CircuitBreaker.PERMITTED_PROBES; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+        }
+        assertEquals(0, breaker.getAvailableProbes());
+        breaker.releasePermission();
+        assertEquals(1, breaker.getAvailableProbes());
+        assertTrue(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void answersToCallsPermittedBeforeOpeningAreIgnored() {
+        CircuitBreaker breaker = breaker();
+        assertTrue(breaker.tryAcquirePermission());
+        for (int i = 0; i < CircuitBreaker.MINIMUM_CALLS; i++) {
+            call(breaker, true, FAST);
+        }
+        now += OPEN / 2;
+        breaker.onSuccess(FAST);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(TimeUnit.NANOSECONDS.toMillis(OPEN / 2), breaker.getRemainingOpenMillis());
+    }
+}
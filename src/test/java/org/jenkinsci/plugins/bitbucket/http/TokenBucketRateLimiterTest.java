@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long now = 1000;
+
+    private TokenBucketRateLimiter limiter(int permitsPerSecond, int burst) {
+        return new TokenBucketRateLimiter(permitsPerSecond, burst, () -> now);
+    }
+
+    @Test
+    public void disabledWithoutARate() {
+        TokenBucketRateLimiter limiter = limiter(0, 5);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+    }
+
+    @Test
+    public void letsABurstThrough() {
+        TokenBucketRateLimiter limiter = limiter(10, 5);
+        assertTrue(limiter.isEnabled());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertEquals(0, limiter.getAvailableTokens(), 1e-9);
+    }
+
+    @Test
+    public void spacesOutReservationsOnceEmpty() {
+        TokenBucketRateLimiter limiter = limiter(10, 5);
+        for (int i = 0; i < 5; i++) {
+            limiter.reserve();
+        }
+        assertEquals(SECOND / 10, limiter.reserve());
+        assertEquals(2 * SECOND / 10, limiter.reserve());
+        assertEquals(3 * SECOND / 10, limiter.reserve());
+        assertEquals(-3, limiter.getAvailableTokens(), 1e-9);
+    }
+
+    @Test
+    public void refillsAtTheRate() {
+        TokenBucketRateLimiter limiter = limiter(10, 5);
+        for (int i = 0; i < 5; i++) {
+            limiter.reserve();
+        }
+        now += SECOND / 10;
+        assertEquals(0, limiter.reserve());
+        assertEquals(SECOND / 10, limiter.reserve());
+    }
+
+    @Test
+    public void waitingReservationsAreServedFirst() {
+        TokenBucketRateLimiter limiter = limiter(10, 5);
+        for (int i = 0; i < 8; i++) {
+            limiter.reserve();
+        }
+        // the three reservations made while empty used up the next 300ms
+        now += 3 * SECOND / 10;
+        assertEquals(SECOND / 10, limiter.reserve());
+    }
+
+    @Test
+    public void neverHoldsMoreThanTheBurst() {
+        TokenBucketRateLimiter limiter = limiter(10, 5);
+        now += 60 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.reserve());
+        }
+        assertEquals(SECOND / 10, limiter.reserve());
+    }
+
+    @Test
+    public void defaultsTheBurst() {
+        TokenBucketRateLimiter limiter = limiter(10, 0);
+        assertEquals(TokenBucketRateLimiter.DEFAULT_BURST, limiter.getAvailableTokens(), 1e-9);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+
+/**
+ * Compares the bytes allocated and the time per encode of {@link BitbucketBuildStatusEncoder} with the
+ * Gson serialization it replaced. It is not a test and not run by the build, run its main method from
+ * the test classpath, e.g. {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.jenkinsci.plugins.bitbucket.model.BitbucketBuildStatusEncoderBenchmark}.
+ */
+public class BitbucketBuildStatusEncoderBenchmark {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    private static final BitbucketBuildStatus STATUS = new BitbucketBuildStatus(BitbucketBuildStatus.FAILED,
+        "b2c8a9e0f5f4c3e94d3c5b6e7a8f9d0c", "https://jenkins.example.com/job/project/job/master/42/",
+        "project \u00bb master #42", "3 tests failed in \"integration\" <slow>");
+
+    private static volatile long sink;
+
+    private interface Encode {
+        RequestBody requestBody(BitbucketBuildStatus status);
+    }
+
+    /**
+     * The serializer that was registered with Gson before the encoder existed.
+     */
+    private static final class GsonSerializer implements JsonSerializer<BitbucketBuildStatus> {
+
+        public JsonElement serialize(final BitbucketBuildStatus buildStatus, final Type type,
+                                     final JsonSerializationContext jsonSerializationContext) {
+
+            final JsonObject jsonObject = new JsonObject();
+
+            jsonObject.addProperty("state", buildStatus.getState());
+            jsonObject.addProperty("key", buildStatus.getKey());
+            jsonObject.addProperty("url", buildStatus.getUrl());
+
+            if (!buildStatus.getName().isEmpty()) {
+                jsonObject.addProperty("name", buildStatus.getName());
+            }
+            if (!buildStatus.getDescription().isEmpty()) {
+                jsonObject.addProperty("description", buildStatus.getDescription());
+            }
+
+            return jsonObject;
+        }
+    }
+
+    /**
+     * The request body as it was built for every notification before the encoder existed.
+     */
+    private static RequestBody gson(BitbucketBuildStatus status) {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.registerTypeAdapter(BitbucketBuildStatus.class, new GsonSerializer());
+        gsonBuilder.setPrettyPrinting();
+        Gson gson = gsonBuilder.create();
+        return RequestBody.create(MediaType.parse("application/json; charset=utf-8"), gson.toJson(status));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Encode gson = BitbucketBuildStatusEncoderBenchmark::gson;
+        Encode encoder = BitbucketBuildStatusEncoder::requestBody;
+        run("gson", gson, WARMUP);
+        run("encoder", encoder, WARMUP);
+        System.out.println(run("gson", gson, ITERATIONS));
+        System.out.println(run("encoder", encoder, ITERATIONS));
+    }
+
+    /**
+     * Builds the request body and writes it like the HTTP client does, returning the averages per encode.
+     */
+    private static String run(String name, Encode encode, int iterations) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Buffer buffer = new Buffer();
+            encode.requestBody(STATUS).writeTo(buffer);
+            sink += buffer.size();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        return String.format("%-8s %8.1f ns/encode %8.1f bytes/encode", name, (double) nanos / iterations,
+            (double) bytes / iterations);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.model;
+
+import net.sf.json.JSONObject;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitbucketBuildStatusEncoderTest {
+
+    private static final String URL = "https://jenkins.example.com/job/project/1/";
+
+    /**
+     * Encodes the status and checks that the encoded length matches the bytes that were written.
+     */
+    private static String encode(BitbucketBuildStatus status) throws IOException {
+        Buffer buffer = new Buffer();
+        BitbucketBuildStatusEncoder.encode(status, buffer);
+        assertEquals(buffer.size(), BitbucketBuildStatusEncoder.encodedLength(status));
+        return buffer.readUtf8();
+    }
+
+    /**
+     * Encodes the status and reads it back with a JSON parser.
+     */
+    private static JSONObject roundTrip(BitbucketBuildStatus status) throws IOException {
+        JSONObject json = JSONObject.fromObject(encode(status));
+        assertEquals(status.getState(), json.getString("state"));
+        assertEquals(status.getKey(), json.getString("key"));
+        assertEquals(status.getUrl(), json.getString("url"));
+        if (status.getName() != null && !status.getName().isEmpty()) {
+            assertEquals(status.getName(), json.getString("name"));
+        }
+        if (status.getDescription() != null && !status.getDescription().isEmpty()) {
+            assertEquals(status.getDescription(), json.getString("description"));
+        }
+        return json;
+    }
+
+    private static BitbucketBuildStatus described(String description) {
+        return new BitbucketBuildStatus(BitbucketBuildStatus.SUCCESSFUL, "key", URL, "name", description);
+    }
+
+    @Test
+    public void encodesAPlainStatus() throws IOException {
+        BitbucketBuildStatus status = new BitbucketBuildStatus(BitbucketBuildStatus.INPROGRESS, "key", URL,
+            "project #1", "The build is in progress");
+        assertEquals("{\"state\":\"INPROGRESS\",\"key\":\"key\",\"url\":\"" + URL + "\",\"name\":\"project #1\"," +
+                     "\"description\":\"The build is in progress\"}", encode(status));
+        roundTrip(status);
+    }
+
+    @Test
+    public void leavesOutMissingAndEmptyOptionalFields() throws IOException {
+        JSONObject json = roundTrip(new BitbucketBuildStatus(BitbucketBuildStatus.FAILED, "key", URL, "", null));
+        assertFalse(json.has("name"));
+        assertFalse(json.has("description"));
+        assertEquals(3, json.size());
+    }
+
+    @Test
+    public void keepsEmptyRequiredFields() throws IOException {
+        JSONObject json = roundTrip(new BitbucketBuildStatus(BitbucketBuildStatus.FAILED, "", URL));
+        assertEquals("", json.getString("key"));
+    }
+
+    @Test
+    public void escapesQuotesAndBackslashes() throws IOException {
+        String description = "say \"hello\" to C:\\builds\\ and \\\"nested\\\" quotes\"";
+        String encoded = encode(described(description));
+        assertTrue(encoded, encoded.contains("\\\"hello\\\""));
+        assertTrue(encoded, encoded.contains("C:\\\\builds\\\\"));
+        roundTrip(described(description));
+    }
+
+    @Test
+    public void escapesControlCharacters() throws IOException {
+        StringBuilder description = new StringBuilder("control");
+        for (char c = 0; c < 0x20; c++) {
+            description.append(c);
+        }
+        description.append('\u007f');
+        String encoded = encode(described(description.toString()));
+        for (char c = 0; c < 0x20; c++) {
+            assertEquals(-1, encoded.indexOf(c));
+        }
+        assertTrue(encoded, encoded.contains("\\u0000"));
+        assertTrue(encoded, encoded.contains("\\n\\u000b\\f\\r"));
+        roundTrip(described(description.toString()));
+    }
+
+    @Test
+    public void escapesHtmlCharacters() throws IOException {
+        String name = "<a href='https://example.com/?a=1&b=2'>build</a>";
+        BitbucketBuildStatus status = new BitbucketBuildStatus(BitbucketBuildStatus.SUCCESSFUL, "key", URL, name);
+        String encoded = encode(status);
+        assertFalse(encoded, encoded.contains("<"));
+        assertFalse(encoded, encoded.contains(">"));
+        assertFalse(encoded, encoded.contains("&"));
+        assertFalse(encoded, encoded.contains("'"));
+        assertTrue(encoded, encoded.contains("\\u003ca href\\u003d\\u0027"));
+        roundTrip(status);
+    }
+
+    @Test
+    public void escapesLineAndParagraphSeparators() throws IOException {
+        String description = "line\u2028paragraph\u2029end";
+        String encoded = encode(described(description));
+        assertTrue(encoded, encoded.contains("line\\u2028paragraph\\u2029end"));
+        roundTrip(described(description));
+    }
+
+    @Test
+    public void writesMultiByteCharactersAsUtf8() throws IOException {
+        // two, three and four bytes in UTF-8, the last ones outside the basic multilingual plane
+        String description = "Grüße, ビルド \uD83D\uDE80 \uD834\uDD1E\uD83D\uDE80";
+        String encoded = encode(described(description));
+        assertTrue(encoded, encoded.contains(description));
+        roundTrip(described(description));
+    }
+
+    @Test
+    public void countsLoneSurrogatesAsWritten() throws IOException {
+        // not valid UTF-16, each one is written as a single replacement byte
+        encode(described("high \uD83D alone, low \uDE80 alone, reversed \uDE80\uD83D, at the end \uD83D"));
+    }
+
+    @Test
+    public void requestBodyLengthMatchesTheWrittenBytes() throws IOException {
+        BitbucketBuildStatus status = described("\"quoted\" <b>Grüße</b> \uD83D\uDE80\n\u2028");
+        RequestBody body = BitbucketBuildStatusEncoder.requestBody(status);
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(buffer.size(), body.contentLength());
+        assertEquals(BitbucketBuildStatusEncoder.JSON, body.contentType());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Flagbit GmbH & Co. KG.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.bitbucket.validator;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BitbucketHostValidatorTest {
+
+  private static final String HTTPS = "https://bitbucket.example.com";
+  private static final String ALTERNATE_PORT = "https://bitbucket.example.com:8443";
+  private static final String OTHER = "https://git.example.org";
+
+  private final BitbucketHostValidator validator =
+    new BitbucketHostValidator(Arrays.asList(ALTERNATE_PORT, HTTPS, OTHER));
+
+  @Test
+  public void routesByHostAndPortFirst() {
+    assertEquals(ALTERNATE_PORT, validator.route("bitbucket.example.com", 8443));
+    assertEquals(HTTPS, validator.route("bitbucket.example.com", -1));
+  }
+
+  @Test
+  public void routesByHostAloneForOtherPorts() {
+    // e.g. a repository cloned over ssh, the first instance of the host wins
+    assertEquals(ALTERNATE_PORT, validator.route("bitbucket.example.com", 7999));
+    assertEquals(OTHER, validator.route("git.example.org", 22));
+  }
+
+  @Test
+  public void ignoresTheCaseOfHosts() {
+    assertEquals(OTHER, validator.route("GIT.Example.ORG", -1));
+  }
+
+  @Test
+  public void routesNothingForUnknownHosts() {
+    assertNull(validator.route("github.com", -1));
+    assertNull(validator.route(null, -1));
+    assertNull(new BitbucketHostValidator().route("bitbucket.example.com", -1));
+  }
+
+  @Test
+  public void ignoresInvalidInstances() {
+    BitbucketHostValidator validator = new BitbucketHostValidator(Arrays.asList("not a url", "bitbucket", HTTPS));
+    assertEquals(HTTPS, validator.route("bitbucket.example.com", -1));
+    assertNull(validator.route("bitbucket", -1));
+  }
+}